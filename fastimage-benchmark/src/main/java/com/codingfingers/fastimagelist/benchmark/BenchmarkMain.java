@@ -0,0 +1,54 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH main class, with the same command line options, but writes
+ * the results as JSON to <code>jmh-result.json</code> unless told otherwise (<code>-rf</code>,
+ * <code>-rff</code>), so runs can be compared to track regressions.
+ */
+public class BenchmarkMain {
+	
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+	
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if(commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+				|| commandLine.shouldListProfilers() || commandLine.shouldListResultFormats())
+		{
+			// nothing to run, JMH prints the lists
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if(!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if(!commandLine.getResult().hasValue())
+			options.result(new File(DEFAULT_RESULT_FILE).getPath());
+		
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.cache.CacheHelper;
+import com.codingfingers.fastimagelist.cache.DiskLruCache;
+
+/**
+ * Startup cost of the disk cache: {@link DiskLruCache#open} replaying the journal of a cache
+ * holding a given number of files, which is what the first disk access pays after a cold start.
+ * No file is listed or checked on this path, its cost grows with the journal only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskCacheOpenBenchmark {
+	
+	/**
+	 * files in the disk cache
+	 */
+	@Param({"1000", "10000", "100000"})
+	public int files;
+	
+	private File directory;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Fixtures.createTempDirectory("fastimage-open");
+		DiskLruCache cache = DiskLruCache.open(directory, Long.MAX_VALUE, 0);
+		try {
+			for(int i = 0; i < files; i++)
+			{
+				// tagged with their url, like the caches do
+				String url = Fixtures.imageUrl(i);
+				DiskLruCache.Editor editor = cache.edit(CacheHelper.getFileNameFromUrl(url), url);
+				FileOutputStream output = new FileOutputStream(editor.getFile());
+				try {
+					output.write(i);
+				} finally {
+					output.close();
+				}
+				editor.commit();
+			}
+		} finally {
+			cache.close();
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		Fixtures.deleteRecursively(directory);
+	}
+	
+	@Benchmark
+	public long open() throws IOException
+	{
+		DiskLruCache cache = DiskLruCache.open(directory, Long.MAX_VALUE, 0);
+		try {
+			return cache.size();
+		} finally {
+			cache.close();
+		}
+	}
+}
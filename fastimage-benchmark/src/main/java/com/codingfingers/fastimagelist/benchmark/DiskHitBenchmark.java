@@ -0,0 +1,98 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.cache.ImageBytesCache;
+
+/**
+ * Latency of disk hits of {@link com.codingfingers.fastimagelist.cache.AbstractCache#get}:
+ * journal lookup, file read and the write back to memory, for disk caches of different sizes.
+ * Values are bigger than the memory bound, so every get is a memory miss.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskHitBenchmark {
+	
+	/**
+	 * files in the disk cache
+	 */
+	@Param({"100", "1000", "10000"})
+	public int files;
+	
+	/**
+	 * size of a cached image
+	 */
+	@Param({"8192"})
+	public int valueSize;
+	
+	private File directory;
+	private ImageBytesCache cache;
+	private String[] urls;
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Fixtures.createTempDirectory("fastimage-disk");
+		cache = new ImageBytesCache("DiskHitBenchmark", 64, valueSize - 1, 60 * 24, 4);
+		cache.setMaxDiskSize((long) files * valueSize * 2);
+		cache.setDiskCacheEnabled(directory.getPath());
+		
+		urls = new String[files];
+		byte[] value = new byte[valueSize];
+		for(int i = 0; i < files; i++)
+		{
+			urls[i] = Fixtures.imageUrl(i);
+			cache.putOnDisk(urls[i], value);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		cache.clear(true);
+		Fixtures.deleteRecursively(directory);
+	}
+	
+	@Benchmark
+	public byte[] hit()
+	{
+		next = (next + 7919) % files;
+		return cache.get(urls[next]);
+	}
+}
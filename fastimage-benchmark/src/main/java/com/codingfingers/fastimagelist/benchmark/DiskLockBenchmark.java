@@ -0,0 +1,155 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.cache.ImageBytesCache;
+
+/**
+ * Throughput of disk hits of distinct keys from several threads at once, with the per key striped
+ * disk locks of the caches against a single lock for the whole cache, as when every cache method
+ * was synchronized. Throughput should scale with the threads for striped locks only.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskLockBenchmark {
+	
+	private static final int FILES = 1000;
+	private static final int VALUE_SIZE = 8192;
+	
+	/**
+	 * striped: a lock per key stripe, global: one lock for all keys
+	 */
+	@Param({"striped", "global"})
+	public String locking;
+	
+	private File directory;
+	private ImageBytesCache cache;
+	private String[] urls;
+	private final AtomicInteger threadCount = new AtomicInteger();
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Fixtures.createTempDirectory("fastimage-lock");
+		// values are bigger than the memory bound, so every get reads the disk
+		cache = locking.equals("global")
+				? new GlobalLockCache(VALUE_SIZE - 1)
+				: new ImageBytesCache("DiskLockBenchmark", 64, VALUE_SIZE - 1, 60 * 24, 8);
+		cache.setMaxDiskSize((long) FILES * VALUE_SIZE * 2);
+		cache.setDiskCacheEnabled(directory.getPath());
+		
+		urls = new String[FILES];
+		byte[] value = new byte[VALUE_SIZE];
+		for(int i = 0; i < FILES; i++)
+		{
+			urls[i] = Fixtures.imageUrl(i);
+			cache.putOnDisk(urls[i], value);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		cache.clear(true);
+		Fixtures.deleteRecursively(directory);
+	}
+	
+	/**
+	 * Keys of one thread, none of them read by other threads.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadKeys
+	{
+		private int offset;
+		private int next;
+		
+		@Setup(Level.Trial)
+		public void setUp(DiskLockBenchmark benchmark)
+		{
+			// 8 threads at most, each gets its own eighth of the files
+			offset = benchmark.threadCount.getAndIncrement() % 8 * (FILES / 8);
+		}
+		
+		String nextUrl(String[] urls)
+		{
+			next = (next + 1) % (FILES / 8);
+			return urls[offset + next];
+		}
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public byte[] hit1Thread(ThreadKeys keys)
+	{
+		return cache.get(keys.nextUrl(urls));
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public byte[] hit4Threads(ThreadKeys keys)
+	{
+		return cache.get(keys.nextUrl(urls));
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public byte[] hit8Threads(ThreadKeys keys)
+	{
+		return cache.get(keys.nextUrl(urls));
+	}
+	
+	/**
+	 * Serializes all disk access, like the synchronized cache methods did.
+	 */
+	private static class GlobalLockCache extends ImageBytesCache
+	{
+		private final Object lock = new Object();
+		
+		GlobalLockCache(long maxMemorySize)
+		{
+			super("DiskLockBenchmark", 64, maxMemorySize, 60 * 24, 8);
+		}
+		
+		@Override
+		protected Object getDiskLock(Object key) {
+			return lock;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.util.ByteArrayPool;
+
+/**
+ * Reading a cached image file into memory for decoding: the read path of the caches (one
+ * {@link RandomAccessFile#readFully} into a pooled buffer) against the stream path it replaced (a
+ * {@link BufferedInputStream} copying into a new array). Run with <code>-prof gc</code> to compare
+ * allocations too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskReadBenchmark {
+	
+	/**
+	 * size of the file
+	 */
+	@Param({"5120", "51200", "512000"})
+	public int fileSize;
+	
+	private File directory;
+	private File file;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Fixtures.createTempDirectory("fastimage-read");
+		file = new File(directory, "image");
+		byte[] content = new byte[fileSize];
+		new Random(fileSize).nextBytes(content);
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(content);
+		} finally {
+			output.close();
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		Fixtures.deleteRecursively(directory);
+	}
+	
+	@Benchmark
+	public int readFully() throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			int length = (int) input.length();
+			byte[] data = ByteArrayPool.getShared().acquire(length);
+			try {
+				input.readFully(data, 0, length);
+				return data[length - 1];
+			} finally {
+				ByteArrayPool.getShared().release(data);
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	@Benchmark
+	public int stream() throws IOException
+	{
+		BufferedInputStream input = new BufferedInputStream(new FileInputStream(file));
+		try {
+			int length = (int) file.length();
+			byte[] data = new byte[length];
+			// a single read, like the old path; it happens to return the whole file here
+			input.read(data, 0, length);
+			return data[length - 1];
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.download.HttpUrlConnectionTransport;
+import com.codingfingers.fastimagelist.download.ImageFetcher;
+import com.codingfingers.fastimagelist.download.ImageTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads of small images from an in-process HTTP server, through the default
+ * {@link HttpUrlConnectionTransport} with connections kept alive, and closed after every image.
+ * Bodies are read by {@link ImageFetcher#readBody}, like the downloader reads them. Reports
+ * requests per second for a batch of 200 images, and the latency distribution of single requests.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+	
+	private static final int IMAGES = 200;
+	
+	@Param({"true", "false"})
+	public boolean keepAlive;
+	
+	/**
+	 * size of an image, thumbnails are a few kilobytes
+	 */
+	@Param({"4096"})
+	public int imageSize;
+	
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private ImageTransport transport;
+	private String[] urls;
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		final byte[] image = new byte[imageSize];
+		new Random(42).nextBytes(image);
+		
+		// without it headers and body go out in separate segments and every keep-alive
+		// request waits for a delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream request = exchange.getRequestBody();
+				while(request.read() != -1)
+				{
+				}
+				exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+				exchange.sendResponseHeaders(200, image.length);
+				OutputStream body = exchange.getResponseBody();
+				body.write(image);
+				body.close();
+			}
+		});
+		serverThreads = Executors.newFixedThreadPool(4);
+		server.setExecutor(serverThreads);
+		server.start();
+		
+		urls = new String[IMAGES];
+		for(int i = 0; i < IMAGES; i++)
+			urls[i] = "http://127.0.0.1:" + server.getAddress().getPort() + "/images/" + i + ".jpg";
+		
+		transport = keepAlive ? new HttpUrlConnectionTransport(true, HttpUrlConnectionTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST)
+				: new HttpUrlConnectionTransport(false, 0);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(IMAGES)
+	public long downloadAll() throws IOException
+	{
+		long bytes = 0;
+		for(int i = 0; i < IMAGES; i++)
+			bytes += download(urls[i]).length;
+		return bytes;
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public byte[] downloadOne() throws IOException
+	{
+		next = (next + 1) % IMAGES;
+		return download(urls[next]);
+	}
+	
+	private byte[] download(String url) throws IOException
+	{
+		ImageTransport.Response response = transport.open(url, null);
+		try {
+			return ImageFetcher.readBody(response, null, null);
+		} finally {
+			response.close();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.cache.CacheHelper;
+
+/**
+ * Cost of turning a url into a cache file name, {@link CacheHelper#getFileNameFromUrl}, done for
+ * every disk lookup and write.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileNameBenchmark {
+	
+	private static final int URLS = 1024;
+	
+	private String[] urls;
+	private int next;
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		urls = new String[URLS];
+		for(int i = 0; i < URLS; i++)
+			urls[i] = Fixtures.imageUrl(i);
+	}
+	
+	@Benchmark
+	public String fileName()
+	{
+		next = (next + 1) & (URLS - 1);
+		return CacheHelper.getFileNameFromUrl(urls[next]);
+	}
+}
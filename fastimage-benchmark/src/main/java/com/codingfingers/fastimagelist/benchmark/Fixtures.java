@@ -0,0 +1,60 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Fixtures {
+	
+	private Fixtures()
+	{
+	}
+	
+	/**
+	 * @return a new, empty directory for a disk cache
+	 */
+	static File createTempDirectory(String prefix) throws IOException
+	{
+		File directory = File.createTempFile(prefix, "");
+		if(!directory.delete() || !directory.mkdirs())
+			throw new IOException("Failed creating " + directory);
+		return directory;
+	}
+	
+	static void deleteRecursively(File file)
+	{
+		File[] children = file.listFiles();
+		if(children != null)
+		{
+			for(File child : children)
+				deleteRecursively(child);
+		}
+		file.delete();
+	}
+	
+	/**
+	 * @return url of the i-th test image, as long as typical CDN urls
+	 */
+	static String imageUrl(int i)
+	{
+		return "http://farm" + (i % 9) + ".staticflickr.com/" + (1000 + i % 7919) + "/" + (7000000000L + i * 7919L)
+				+ "_4f3e2d1c0b_q.jpg";
+	}
+}
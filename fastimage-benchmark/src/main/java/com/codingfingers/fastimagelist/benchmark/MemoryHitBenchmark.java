@@ -0,0 +1,133 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.cache.CacheHelper;
+import com.codingfingers.fastimagelist.cache.ImageBytesCache;
+
+/**
+ * Throughput of memory hits of {@link com.codingfingers.fastimagelist.cache.AbstractCache#get},
+ * alone and with 8 threads hitting the same cache. Run with <code>-prof gc</code> to see the
+ * allocation per hit (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemoryHitBenchmark {
+	
+	/**
+	 * images held in memory
+	 */
+	@Param({"100", "1000"})
+	public int entries;
+	
+	private ImageBytesCache cache;
+	private String[] urls;
+	private ImageBytesCache variants;
+	
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		cache = new ImageBytesCache("MemoryHitBenchmark", 64, Long.MAX_VALUE, 60 * 24, 16);
+		urls = new String[entries];
+		for(int i = 0; i < entries; i++)
+		{
+			urls[i] = Fixtures.imageUrl(i);
+			cache.put(urls[i], new byte[64]);
+		}
+		
+		variants = new ImageBytesCache("MemoryHitBenchmark", 64, Long.MAX_VALUE, 60 * 24, 16);
+		for(int i = 0; i < entries; i++)
+			variants.put(CacheHelper.getVariantKey(urls[i], 150, 150, null), new byte[64]);
+	}
+	
+	/**
+	 * Position of a thread in the urls, so threads hit different entries.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		int next;
+		
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			next = (int) (Thread.currentThread().getId() * 7919);
+		}
+		
+		int next(int count)
+		{
+			next = (next + 1) & Integer.MAX_VALUE;
+			return next % count;
+		}
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public byte[] hit(Cursor cursor)
+	{
+		return cache.get(urls[cursor.next(entries)]);
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public byte[] hitContended(Cursor cursor)
+	{
+		return cache.get(urls[cursor.next(entries)]);
+	}
+	
+	/**
+	 * key of a variant looked up again, as on every memory hit of a resized image
+	 */
+	@Benchmark
+	@Threads(1)
+	public String variantKey(Cursor cursor)
+	{
+		return CacheHelper.getVariantKey(urls[cursor.next(entries)], 150, 150, null);
+	}
+	
+	/**
+	 * Lookup done by a memory hit of downloadImage, as far as it runs without Android: the variant
+	 * key, then the memory cache. Its only allocation is the node the memory cache queues on every
+	 * read to keep its LRU order (about 24 bytes), which the Guava cache can't be told to skip
+	 * while it is bounded by size.
+	 */
+	@Benchmark
+	@Threads(1)
+	public byte[] variantHit(Cursor cursor)
+	{
+		return variants.get(CacheHelper.getVariantKey(urls[cursor.next(entries)], 150, 150, null));
+	}
+}
@@ -0,0 +1,173 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codingfingers.fastimagelist.download.ImageFetcher;
+import com.codingfingers.fastimagelist.download.ImageTransport;
+
+/**
+ * Reading a download into memory, with and without a Content-Length: {@link ImageFetcher#readBody}
+ * against the stream path it replaced (a {@link BufferedInputStream} as big as the body, and a
+ * growing {@link ByteArrayOutputStream} if the length is unknown). The body comes from memory in
+ * network sized chunks, so only the copying and allocations are measured; run with
+ * <code>-prof gc</code> to compare the allocations per download.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBodyBenchmark {
+	
+	/**
+	 * bytes returned by one read, like a socket read
+	 */
+	private static final int CHUNK_SIZE = 8 * 1024;
+	
+	/**
+	 * size of the downloaded image
+	 */
+	@Param({"10240", "102400", "1048576"})
+	public int bodySize;
+	
+	/**
+	 * whether the response has a Content-Length
+	 */
+	@Param({"true", "false"})
+	public boolean knownLength;
+	
+	private byte[] body;
+	
+	@Setup
+	public void setUp()
+	{
+		body = new byte[bodySize];
+		new Random(bodySize).nextBytes(body);
+	}
+	
+	@Benchmark
+	public byte[] readBody() throws IOException
+	{
+		return ImageFetcher.readBody(new MemoryResponse(), null, null);
+	}
+	
+	@Benchmark
+	public byte[] stream() throws IOException
+	{
+		MemoryResponse response = new MemoryResponse();
+		int fileSize = response.getContentLength();
+		InputStream istream = new BufferedInputStream(response.getBody(),
+				fileSize <= 0 ? ImageFetcher.DEFAULT_BUFFER_SIZE : fileSize);
+		if(fileSize <= 0)
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(ImageFetcher.DEFAULT_BUFFER_SIZE);
+			byte[] buffer = new byte[ImageFetcher.DEFAULT_BUFFER_SIZE];
+			int bytesRead;
+			while((bytesRead = istream.read(buffer, 0, buffer.length)) != -1)
+				buf.write(buffer, 0, bytesRead);
+			return buf.toByteArray();
+		}
+		
+		byte[] imageData = new byte[fileSize];
+		int offset = 0;
+		while(offset < fileSize)
+		{
+			int bytesRead = istream.read(imageData, offset, fileSize - offset);
+			if(bytesRead == -1)
+				throw new IOException("Unexpected end of stream");
+			offset += bytesRead;
+		}
+		return imageData;
+	}
+	
+	private class MemoryResponse implements ImageTransport.Response
+	{
+		private final ChunkedInputStream in = new ChunkedInputStream(body);
+		
+		@Override
+		public int getCode() {
+			return 200;
+		}
+		
+		@Override
+		public int getContentLength() {
+			return knownLength ? body.length : -1;
+		}
+		
+		@Override
+		public String getHeader(String name) {
+			return null;
+		}
+		
+		@Override
+		public InputStream getBody() {
+			return in;
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Returns at most {@link #CHUNK_SIZE} bytes per read.
+	 */
+	private static class ChunkedInputStream extends InputStream
+	{
+		private final byte[] data;
+		private int position;
+		
+		ChunkedInputStream(byte[] data)
+		{
+			this.data = data;
+		}
+		
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) {
+			if(position >= data.length)
+				return -1;
+			int n = Math.min(Math.min(count, CHUNK_SIZE), data.length - position);
+			System.arraycopy(data, position, buffer, offset, n);
+			position += n;
+			return n;
+		}
+	}
+}
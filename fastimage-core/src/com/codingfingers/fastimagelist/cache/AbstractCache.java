@@ -0,0 +1,1118 @@
+/* Copyright (c) 2009 Matthias Kaeppler
+ * Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import com.codingfingers.fastimagelist.metrics.ImageMetrics;
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.codingfingers.fastimagelist.util.ImageLogger;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * <p>
+ * A simple 2-level cache consisting of a small and fast in-memory cache (1st level cache) and an
+ * (optional) slower but bigger disk cache (2nd level cache). For disk caching, either the
+ * application's cache directory or the SD card can be used. Please note that in the case of the app
+ * cache dir, Android may at any point decide to wipe that entire directory if it runs low on
+ * internal storage. The SD card cache <i>must</i> be managed by the application, e.g. by calling
+ * {@link #wipe} whenever the app quits. The disk cache is bounded in size (see
+ * {@link #setMaxDiskSize}) and evicts least recently used files, its state is kept in a
+ * {@link DiskLruCache} journal.
+ * </p>
+ * <p>
+ * When pulling from the cache, it will first attempt to load the data from memory. If that fails,
+ * it will try to load it from disk (assuming disk caching is enabled). If that succeeds, the data
+ * will be put in the in-memory cache and returned (read-through). Otherwise it's a cache miss.
+ * </p>
+ * <p>
+ * Pushes to the cache are write-through by default (i.e. the data will be stored both on disk, if
+ * disk caching is enabled, and in memory). With {@link #enableWriteBehind} the disk write is left
+ * to a background thread instead.
+ * </p>
+ * 
+ * @author Matthias Kaeppler
+ */
+public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    private static final int MIN_DISK_LOCK_STRIPES = 16;
+
+    /**
+     * default bound of the disk cache, see {@link #setMaxDiskSize(long)}
+     */
+    public static final long DEFAULT_MAX_DISK_SIZE = 50 * 1024 * 1024;
+
+    private volatile boolean isDiskCacheEnabled;
+
+    protected volatile String diskCacheDirectory;
+
+    private volatile DiskLruCache diskCache;
+
+    /**
+     * guards opening and closing the disk cache; lookups don't take it once the cache is open
+     */
+    private final Object diskCacheLock = new Object();
+
+    private long maxDiskSize = DEFAULT_MAX_DISK_SIZE;
+
+    private volatile WriteBehindQueue<KeyT, ValT> writeBehind;
+
+    private volatile Cache<KeyT, ValT> cache;
+
+    private final AtomicLong memorySize = new AtomicLong();
+
+    private volatile ImageMetrics metrics = ImageMetrics.getDefault();
+
+    private String name;
+
+    private int initialCapacity;
+
+    private long maxMemorySize;
+
+    private long expirationInMinutes;
+
+    private int maxConcurrentThreads;
+
+    /**
+     * Disk reads and writes are serialized per key: a key always maps to the same lock, unrelated
+     * keys most likely don't. The in-memory cache is never accessed under these locks.
+     */
+    private final Object[] diskLocks;
+
+    /**
+     * Creates a new cache instance. The in-memory cache is not bounded in size, see
+     * {@link #AbstractCache(String, int, long, long, int)}.
+     * 
+     * @param name
+     *            a human readable identifier for this cache. Note that this value will be used to
+     *            derive a directory name if the disk cache is enabled, so don't get too creative
+     *            here (camel case names work great)
+     * @param initialCapacity
+     *            the initial element size of the cache
+     * @param expirationInMinutes
+     *            time in minutes after which elements will be purged from the cache
+     * @param maxConcurrentThreads
+     *            how many threads you think may at once access the cache; this need not be an exact
+     *            number, but it helps in fragmenting the cache properly
+     */
+    public AbstractCache(String name, int initialCapacity, long expirationInMinutes,
+            int maxConcurrentThreads) {
+        this(name, initialCapacity, 0, expirationInMinutes, maxConcurrentThreads);
+    }
+
+    /**
+     * Creates a new cache instance with an in-memory cache bounded by the total size of its values.
+     * Once the bound is reached, least recently used entries are evicted from memory (they stay on
+     * disk if the disk cache is enabled).
+     * 
+     * @param name
+     *            a human readable identifier for this cache, see
+     *            {@link #AbstractCache(String, int, long, int)}
+     * @param initialCapacity
+     *            the initial element size of the cache
+     * @param maxMemorySize
+     *            the maximum total size of in-memory values, measured in the units returned by
+     *            {@link #sizeOf}; 0 or less means no bound
+     * @param expirationInMinutes
+     *            time in minutes after which elements will be purged from the cache
+     * @param maxConcurrentThreads
+     *            how many threads you think may at once access the cache
+     */
+    public AbstractCache(String name, int initialCapacity, long maxMemorySize,
+            long expirationInMinutes, int maxConcurrentThreads) {
+
+        this.name = name;
+        this.initialCapacity = initialCapacity;
+        this.maxMemorySize = maxMemorySize;
+        this.expirationInMinutes = expirationInMinutes;
+        this.maxConcurrentThreads = maxConcurrentThreads;
+        this.diskLocks = createDiskLocks(maxConcurrentThreads);
+        this.cache = createCacheBuilder(initialCapacity, maxMemorySize, expirationInMinutes,
+                maxConcurrentThreads).build();
+    }
+
+    protected CacheBuilder<KeyT, ValT> createCacheBuilder(int initialCapacity, long maxMemorySize,
+            long expirationInMinutes, int maxConcurrentThreads)
+    {
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder();
+        cacheBuilder.initialCapacity(initialCapacity);
+        cacheBuilder.expireAfterWrite(expirationInMinutes * 60, TimeUnit.SECONDS);
+        cacheBuilder.concurrencyLevel(maxConcurrentThreads);
+        cacheBuilder.recordStats();
+        if (maxMemorySize > 0) {
+            cacheBuilder.maximumWeight(maxMemorySize);
+            cacheBuilder.weigher(new Weigher<KeyT, ValT>() {
+                @Override
+                public int weigh(KeyT key, ValT value) {
+                    return sizeOf(key, value);
+                }
+            });
+        }
+
+        return cacheBuilder.removalListener(new RemovalListener<KeyT, ValT>() {
+            @Override
+            public void onRemoval(RemovalNotification<KeyT, ValT> notification) {
+                KeyT key = notification.getKey();
+                ValT value = notification.getValue();
+                if (value != null) {
+                    memorySize.addAndGet(-sizeOf(key, value));
+
+                    // values carried over by setMaxMemorySize are still cached
+                    if (cache.asMap().get(key) != value) {
+                        onRemovedFromMemory(key, value);
+                    }
+                }
+            }
+        });
+    }
+
+    private static Object[] createDiskLocks(int maxConcurrentThreads) {
+        int stripes = MIN_DISK_LOCK_STRIPES;
+        while (stripes < maxConcurrentThreads * 4) {
+            stripes <<= 1;
+        }
+        Object[] locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    /**
+     * @param key
+     *            the cache key
+     * @return the lock guarding disk access for the given key
+     */
+    protected Object getDiskLock(Object key) {
+        int h = key.hashCode();
+        // spread the hash, as String hash codes of similar urls differ mostly in low bits
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return diskLocks[h & (diskLocks.length - 1)];
+    }
+
+    /**
+     * Returns the size of a value held in the in-memory cache, used to enforce the memory bound
+     * passed to {@link #AbstractCache(String, int, long, long, int)}. The default implementation
+     * counts every entry as 1. Must return the same result for as long as the entry is cached.
+     * 
+     * @param key
+     *            the cache key
+     * @param value
+     *            the cached value
+     * @return the size of the value, never negative
+     */
+    protected int sizeOf(KeyT key, ValT value) {
+        return 1;
+    }
+
+    /**
+     * Called when a value leaves the in-memory cache: evicted, expired, replaced or removed. It
+     * may still be cached on disk. The default implementation does nothing.
+     * 
+     * @param key
+     *            the cache key
+     * @param value
+     *            the value no longer held in memory
+     */
+    protected void onRemovedFromMemory(KeyT key, ValT value) {
+    }
+
+    /**
+     * Changes the bound of the in-memory cache. Entries held in memory are carried over, least
+     * recently used ones are evicted if they don't fit anymore.
+     * 
+     * @param maxMemorySize
+     *            the maximum total size of in-memory values, see {@link #sizeOf}; 0 or less means
+     *            no bound
+     */
+    public synchronized void setMaxMemorySize(long maxMemorySize) {
+        if (this.maxMemorySize == maxMemorySize) {
+            return;
+        }
+        this.maxMemorySize = maxMemorySize;
+
+        Cache<KeyT, ValT> oldCache = cache;
+        cache = createCacheBuilder(initialCapacity, maxMemorySize, expirationInMinutes,
+                maxConcurrentThreads).build();
+        for (Map.Entry<KeyT, ValT> entry : oldCache.asMap().entrySet()) {
+            putInMemory(entry.getKey(), entry.getValue());
+        }
+        oldCache.invalidateAll();
+    }
+
+    public long getMaxMemorySize() {
+        return maxMemorySize;
+    }
+
+    /**
+     * @return the total size of the values currently held in memory, see {@link #sizeOf}
+     */
+    public long getMemorySize() {
+        return memorySize.get();
+    }
+
+    /**
+     * Hit, miss and eviction counters of the in-memory cache. Disk hits are counted as memory
+     * misses.
+     * 
+     * @return a snapshot of the in-memory cache statistics
+     */
+    public CacheStats getMemoryCacheStats() {
+        return cache.stats();
+    }
+
+    public ImageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where disk reads and lookup latencies are recorded, by default
+     * {@link ImageMetrics#getDefault()}. Memory hits are only counted in
+     * {@link #getMemoryCacheStats()}.
+     */
+    public void setMetrics(ImageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sanitize disk cache. Remove entries which are older than expirationInMinutes. This opens the
+     * disk cache and sweeps it in small batches on a background thread, so it doesn't delay the
+     * caller; expired entries are never returned by {@link #get} in the meantime.
+     */
+    private void sanitizeDiskCache() {
+        DiskCacheSanitizer.start(this, name);
+    }
+
+    /**
+     * Returns the journaled disk cache for the current cache directory, opening it on first use.
+     * Once it is open, this takes no lock.
+     * 
+     * @return the disk cache, or null if disk caching is disabled or the directory is unusable
+     */
+    protected DiskLruCache getDiskCache() {
+        if (!isDiskCacheEnabled) {
+            return null;
+        }
+
+        DiskLruCache diskCache = this.diskCache;
+        return diskCache != null ? diskCache : openDiskCache();
+    }
+
+    /**
+     * @return true if disk caching is enabled but the disk cache is not open yet, e.g. while its
+     *         journal is replayed at startup; reading from disk waits for it to open meanwhile
+     */
+    public boolean isDiskCacheOpening() {
+        return isDiskCacheEnabled && diskCache == null;
+    }
+
+    private DiskLruCache openDiskCache() {
+        synchronized (diskCacheLock) {
+            // another thread may have opened it while we were waiting
+            if (diskCache != null) {
+                return diskCache;
+            }
+
+            String directory = diskCacheDirectory;
+            try {
+                diskCache = DiskLruCache.open(new File(directory), maxDiskSize,
+                        expirationInMinutes * 60 * 1000);
+            } catch (IOException e) {
+                if (FastImageLog.isLoggable(ImageLogger.ERROR)) {
+                    FastImageLog.e(LOG_TAG, "Failed opening disk cache in " + directory, e);
+                }
+            }
+            return diskCache;
+        }
+    }
+
+    private void closeDiskCache() {
+        synchronized (diskCacheLock) {
+            if (diskCache != null) {
+                diskCache.close();
+                diskCache = null;
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes the disk cache may use. Least recently used entries are
+     * removed from disk once it is exceeded.
+     * 
+     * @param maxDiskSize
+     *            the disk budget in bytes
+     */
+    public void setMaxDiskSize(long maxDiskSize) {
+        synchronized (diskCacheLock) {
+            this.maxDiskSize = maxDiskSize;
+            if (diskCache != null) {
+                diskCache.setMaxSize(maxDiskSize);
+            }
+        }
+    }
+
+    public long getMaxDiskSize() {
+        return maxDiskSize;
+    }
+
+    /**
+     * Switches to write-behind: {@link #put} returns as soon as the value is in memory, and a
+     * background thread writes it to disk. Values waiting to be written can still be read. When
+     * more than <code>maxQueuedWrites</code> values are waiting, {@link #put} blocks until the
+     * writer catches up.
+     * 
+     * @param maxQueuedWrites
+     *            the number of values that may wait to be written
+     */
+    public synchronized void enableWriteBehind(int maxQueuedWrites) {
+        if (writeBehind != null) {
+            return;
+        }
+        writeBehind = new WriteBehindQueue<KeyT, ValT>(name, maxQueuedWrites,
+                new WriteBehindQueue.DiskWriter<KeyT, ValT>() {
+                    @Override
+                    public void writePending(KeyT key) {
+                        AbstractCache.this.writePending(key);
+                    }
+
+                    @Override
+                    public void batchWritten() {
+                        DiskLruCache diskCache = getDiskCache();
+                        if (diskCache != null) {
+                            diskCache.flush();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Writes all queued values and switches back to write-through.
+     */
+    public synchronized void disableWriteBehind() {
+        if (writeBehind == null) {
+            return;
+        }
+        try {
+            writeBehind.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeBehind = null;
+    }
+
+    /**
+     * Blocks until all values put so far are written to disk. Meant for tests and for shutting
+     * down; does nothing in write-through mode.
+     */
+    public void flush() {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            try {
+                writeBehind.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of values waiting to be written to disk, always 0 in write-through mode
+     */
+    public int getWriteQueueDepth() {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        return writeBehind != null ? writeBehind.getDepth() : 0;
+    }
+
+    /**
+     * @return true if a value of the key is waiting to be written to disk
+     */
+    protected boolean isWritePending(Object key) {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        return writeBehind != null && writeBehind.isPending(key);
+    }
+
+    /**
+     * @return the value waiting to be written to disk by write-behind, or null
+     */
+    protected ValT getPendingWrite(Object key) {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        return writeBehind != null ? writeBehind.getPending(key) : null;
+    }
+
+    /**
+     * @return the value held in memory, or null; never reads from disk
+     */
+    protected ValT getFromMemory(Object key) {
+        return cache.getIfPresent(key);
+    }
+
+    private void writePending(KeyT key) {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        if (writeBehind == null) {
+            return;
+        }
+        synchronized (getDiskLock(key)) {
+            ValT value;
+            while ((value = writeBehind.getPending(key)) != null) {
+                cacheToDisk(key, value);
+                if (writeBehind.written(key, value)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes currently used by the disk cache
+     */
+    public long getDiskSize() {
+        DiskLruCache diskCache = getDiskCache();
+        return diskCache != null ? diskCache.size() : 0;
+    }
+
+    /**
+     * Enable caching to disk, in a directory of this cache under the given root. The directory is
+     * created if needed, and files left there by a previous run are checked in the background.
+     * 
+     * @param rootDir
+     *            directory to keep the cache in, or null if there is none, which disables disk
+     *            caching
+     * @return whether disk caching is enabled
+     */
+    public boolean enableDiskCache(String rootDir) {
+        if (rootDir == null) {
+            return (isDiskCacheEnabled = false);
+        }
+
+        setRootDir(rootDir);
+
+        File outFile = new File(diskCacheDirectory);
+        if (outFile.mkdirs()) {
+            File nomedia = new File(diskCacheDirectory, ".nomedia");
+            try {
+                nomedia.createNewFile();
+            } catch (IOException e) {
+                FastImageLog.e(LOG_TAG, "Failed creating .nomedia file", e);
+            }
+        }
+
+        isDiskCacheEnabled = outFile.exists();
+
+        if (!isDiskCacheEnabled) {
+            if (FastImageLog.isLoggable(ImageLogger.WARN)) {
+                FastImageLog.w(LOG_TAG, "Failed creating disk cache directory " + diskCacheDirectory);
+            }
+        } else {
+            if (FastImageLog.isLoggable(ImageLogger.DEBUG)) {
+                FastImageLog.d(name, "enabled write through to " + diskCacheDirectory);
+            }
+
+            // sanitize disk cache in the background
+            FastImageLog.d(name, "sanitize DISK cache");
+            sanitizeDiskCache();
+        }
+
+        return isDiskCacheEnabled;
+    }
+
+    private void setRootDir(String rootDir) {
+        String directory = rootDir + "/cachefu/" + name.replaceAll("\\s", "");
+        if (!directory.equals(diskCacheDirectory)) {
+            this.diskCacheDirectory = directory;
+            // opened in the new directory on next use
+            closeDiskCache();
+        }
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}.
+     * 
+     * @return the full absolute path to the directory where files are cached, if the disk cache is
+     *         enabled, otherwise null
+     */
+    public String getDiskCacheDirectory() {
+        return diskCacheDirectory;
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Turns a cache key
+     * into the file name that will be used to persist the value to disk. Subclasses must implement
+     * this.
+     * 
+     * @param key
+     *            the cache key
+     * @return the file name
+     */
+    public abstract String getFileNameForKey(KeyT key);
+
+    /**
+     * Returns the tag stored with the disk entry of the key. The tag tells apart keys whose file
+     * names collide and lets {@link #removeAllFromDiskWithPrefix} find entries without listing
+     * files. The default implementation uses <code>key.toString()</code>.
+     * 
+     * @param key
+     *            the cache key
+     * @return the tag
+     */
+    protected String getDiskTag(KeyT key) {
+        return key.toString();
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Restores a value
+     * previously persisted to the disk cache.
+     * 
+     * @param file
+     *            the file holding the cached value
+     * @return the cached value
+     * @throws IOException
+     */
+    protected abstract ValT readValueFromDisk(File file) throws IOException;
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Persists a value to
+     * the disk cache.
+     * 
+     * @param file
+     *            the file to write to; a temporary file which replaces the cached one only once
+     *            this method returns successfully
+     * @param value
+     *            the cache value to persist
+     * @throws IOException
+     */
+    protected abstract void writeValueToDisk(File file, ValT value) throws IOException;
+
+    /**
+     * Called before a value is written to disk, to set the freshness lifetime and metadata stored
+     * with it, see {@link DiskLruCache.Editor#setMetadata}. Does nothing by default.
+     */
+    protected void prepareDiskEdit(KeyT key, ValT value, DiskLruCache.Editor editor) {
+    }
+
+    private void cacheToDisk(KeyT key, ValT value) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+
+        DiskLruCache.Editor editor;
+        try {
+            editor = diskCache.edit(getFileNameForKey(key), getDiskTag(key));
+        } catch (IllegalArgumentException e) {
+            FastImageLog.w(name, "Not caching to DISK", e);
+            return;
+        }
+        if (editor == null) {
+            // another write of the same file is in progress
+            return;
+        }
+
+        try {
+            prepareDiskEdit(key, value, editor);
+            writeValueToDisk(editor.getFile(), value);
+            editor.commit();
+        } catch (IOException e) {
+            FastImageLog.w(name, "Failed caching to DISK", e);
+            editor.abort();
+        }
+    }
+
+    /**
+     * Starts writing a value to disk, for values streamed from somewhere slow; the disk lock is
+     * not held meanwhile. Readers see the previous value until the editor is committed.
+     * 
+     * @return the editor, or null if disk caching is disabled or the key is being written
+     */
+    protected DiskLruCache.Editor editOnDisk(KeyT key) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+
+        try {
+            return diskCache.edit(getFileNameForKey(key), getDiskTag(key));
+        } catch (IllegalArgumentException e) {
+            FastImageLog.w(name, "Not caching to DISK", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the file holding the cached value for the key, or null if it isn't cached on disk
+     */
+    protected File getFileForKey(KeyT key) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+
+        try {
+            return diskCache.get(getFileNameForKey(key), getDiskTag(key));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the value of the key is on disk, but past its freshness lifetime, so it has
+     *         to be revalidated before use, see {@link DiskLruCache#isStale}
+     */
+    protected boolean isStaleOnDisk(KeyT key) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return false;
+        }
+
+        try {
+            return diskCache.isStale(getFileNameForKey(key), getDiskTag(key));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the metadata stored with the value of the key on disk, fresh or stale, or null
+     */
+    protected String getDiskMetadata(KeyT key) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+
+        try {
+            return diskCache.getMetadata(getFileNameForKey(key), getDiskTag(key));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Makes the value of the key on disk fresh again, see {@link DiskLruCache#refresh}.
+     * 
+     * @return true if it was refreshed
+     */
+    protected boolean refreshOnDisk(KeyT key, long expires, String metadata) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return false;
+        }
+
+        try {
+            return diskCache.refresh(getFileNameForKey(key), getDiskTag(key), expires, metadata);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the validators of the value on disk if it is stale and can be revalidated with a
+     *         conditional request, otherwise null
+     */
+    public CacheValidators getStaleValidators(KeyT key) {
+        if (!isStaleOnDisk(key)) {
+            return null;
+        }
+
+        String metadata = getDiskMetadata(key);
+        if (metadata == null) {
+            return null;
+        }
+
+        CacheValidators validators = CacheValidators.decode(metadata, 0);
+        return validators.canRevalidate() ? validators : null;
+    }
+
+    /**
+     * Makes the stale value on disk fresh again, once the server confirmed it is unchanged (304
+     * Not Modified).
+     * 
+     * @param validators
+     *            validators after the revalidation, see {@link CacheValidators#revalidated}
+     * @return true if it was refreshed, false if it is not on disk anymore
+     */
+    public boolean revalidate(KeyT key, CacheValidators validators) {
+        return refreshOnDisk(key, validators.getExpires(),
+                validators.canRevalidate() ? validators.encode() : null);
+    }
+
+    /**
+     * Stores the freshness lifetime and validators of a download with the value being written.
+     * 
+     * @param validators
+     *            validators of the download, or null to keep the cache defaults
+     */
+    protected static void setMetadata(DiskLruCache.Editor editor, CacheValidators validators) {
+        if (validators != null) {
+            editor.setMetadata(validators.getExpires(),
+                    validators.canRevalidate() ? validators.encode() : null);
+        }
+    }
+
+    /**
+     * Reads a value from the cache by first probing the in-memory cache. If not found, the the disk
+     * cache will be probed. If it's a hit, the entry is written back to memory and returned.
+     * Memory hits never block; disk reads block only concurrent reads and writes of the same key.
+     * 
+     * @param elementKey
+     *            the cache key
+     * @return the cached value, or null if element was not cached
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ValT get(Object elementKey) {
+        KeyT key = (KeyT) elementKey;
+        ImageMetrics metrics = this.metrics;
+        long start = metrics.startTimer();
+        ValT value = cache.getIfPresent(key);
+        if (value != null) {
+            // memory hit, counted by the cache statistics
+            metrics.recordLookup(start);
+            return value;
+        }
+
+        try {
+            synchronized (getDiskLock(key)) {
+                // another thread may have read the same key while we were waiting
+                value = cache.asMap().get(key);
+                if (value != null) {
+                    return value;
+                }
+
+                WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+                if (writeBehind != null) {
+                    // not cached in memory again: it may have been evicted from memory already,
+                    // and subclasses may have released its resources then
+                    value = writeBehind.getPending(key);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+                return getFromDisk(key);
+            }
+        } finally {
+            metrics.recordLookup(start);
+        }
+    }
+
+    private ValT getFromDisk(KeyT key) {
+        ValT value;
+
+        // memory miss, try reading from disk; expired entries are not returned
+        File file = getFileForKey(key);
+        if (file != null) {
+            // disk hit
+            if (FastImageLog.isLoggable(ImageLogger.DEBUG)) {
+                FastImageLog.d(name, "DISK cache hit for " + key);
+            }
+            long start = metrics.startTimer();
+            try {
+                value = readValueFromDisk(file);
+            } catch (IOException e) {
+                // treat decoding errors as a cache miss
+                FastImageLog.w(name, "Failed reading from DISK", e);
+                metrics.recordDiskMiss();
+                return null;
+            }
+            if (value == null) {
+                metrics.recordDiskMiss();
+                return null;
+            }
+            metrics.recordDiskHit(start);
+            putInMemory(key, value);
+            return value;
+        }
+
+        // cache miss
+        metrics.recordDiskMiss();
+        return null;
+    }
+
+    /**
+     * Writes an element to the cache. NOTE: If disk caching is enabled, this will write through to
+     * the disk, which may introduce a performance penalty, unless {@link #enableWriteBehind
+     * write-behind} is enabled.
+     */
+    @Override
+    public ValT put(KeyT key, ValT value) {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        if (writeBehind != null && isDiskCacheEnabled) {
+            try {
+                writeBehind.enqueue(key, value);
+                return putInMemory(key, value);
+            } catch (InterruptedException e) {
+                // write it ourselves
+                Thread.currentThread().interrupt();
+                writeBehind.removePending(key);
+            }
+        }
+
+        synchronized (getDiskLock(key)) {
+            cacheToDisk(key, value);
+
+            return putInMemory(key, value);
+        }
+    }
+
+    /**
+     * Writes an element to the disk cache only, e.g. to have it ready for later without spending
+     * memory on it. Does nothing if disk caching is disabled.
+     */
+    public void putOnDisk(KeyT key, ValT value) {
+        synchronized (getDiskLock(key)) {
+            cacheToDisk(key, value);
+        }
+    }
+
+    /**
+     * Writes an element to the in-memory cache only, replacing the current one.
+     */
+    protected ValT putInMemory(KeyT key, ValT value) {
+        memorySize.addAndGet(sizeOf(key, value));
+        return cache.asMap().put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends KeyT, ? extends ValT> t) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Checks if a value is present in the cache. If the disk cached is enabled, this will also
+     * check whether the value has been persisted to disk.
+     * 
+     * @param key
+     *            the cache key
+     * @return true if the value is cached in memory or on disk, false otherwise
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return cache.asMap().containsKey(key) || isWritePending(key) || containsKeyOnDisk(key);
+    }
+
+    /**
+     * Checks if a value is present in the in-memory cache. This method ignores the disk cache.
+     * 
+     * @param key
+     *            the cache key
+     * @return true if the value is currently hold in memory, false otherwise
+     */
+    public boolean containsKeyInMemory(Object key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    /**
+     * Checks if a value is present in the disk cache. This method ignores the memory cache.
+     * 
+     * @param key
+     *            the cache key
+     * @return true if the value is currently hold on disk, false otherwise. Always false if disk
+     *         cache is disabled.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean containsKeyOnDisk(Object key) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return false;
+        }
+
+        try {
+            return diskCache.contains(getFileNameForKey((KeyT) key), getDiskTag((KeyT) key));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the given value is currently held in memory. For performance reasons, this method
+     * does NOT probe the disk cache.
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        return cache.asMap().containsValue(value);
+    }
+
+    /**
+     * Removes an entry from both memory and disk.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ValT remove(Object key) {
+        synchronized (getDiskLock(key)) {
+            ValT value = removeKey(key);
+
+            WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+            if (writeBehind != null) {
+                writeBehind.removePending(key);
+            }
+
+            DiskLruCache diskCache = getDiskCache();
+            if (diskCache != null) {
+                try {
+                    diskCache.remove(getFileNameForKey((KeyT) key), getDiskTag((KeyT) key));
+                } catch (IllegalArgumentException e) {
+                    // was never cached to disk
+                }
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * Removes all entries whose disk tag (see {@link #getDiskTag}) starts with the given prefix
+     * from disk, including values waiting to be written. The memory cache is left alone.
+     * 
+     * @param keyPrefix
+     *            the prefix
+     * @return the number of entries removed from disk
+     */
+    public int removeAllFromDiskWithPrefix(String keyPrefix) {
+        WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            for (KeyT key : writeBehind.getPendingKeys()) {
+                if (getDiskTag(key).startsWith(keyPrefix)) {
+                    writeBehind.removePending(key);
+                }
+            }
+        }
+
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return 0;
+        }
+        return diskCache.removeAllWithTagPrefix(keyPrefix);
+    }
+
+    /**
+     * Removes an entry from memory.
+     * 
+     * @param key
+     *            the cache key
+     * @return the element removed or null
+     */
+    public ValT removeKey(Object key) {
+        return cache.asMap().remove(key);
+    }
+
+    @Override
+    public Set<KeyT> keySet() {
+        return cache.asMap().keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<KeyT, ValT>> entrySet() {
+        return cache.asMap().entrySet();
+    }
+
+    @Override
+    public int size() {
+        return cache.asMap().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return cache.asMap().isEmpty();
+    }
+
+    public boolean isDiskCacheEnabled() {
+        return isDiskCacheEnabled;
+    }
+
+    /**
+     * Retrieves the list of files that are currently cached to disk. Guarantees to never return
+     * null.
+     * 
+     * @return the list of files on disk
+     */
+    public List<File> getCachedFiles() {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return Collections.emptyList();
+        } else {
+            return diskCache.getFiles();
+        }
+    }
+
+    /**
+     * 
+     * @param rootDir
+     *            a folder name to enable caching or null to disable it.
+     */
+    public void setDiskCacheEnabled(String rootDir) {
+        if (rootDir != null && rootDir.length() > 0) {
+            setRootDir(rootDir);
+            this.isDiskCacheEnabled = true;
+        } else {
+            this.isDiskCacheEnabled = false;
+        }
+    }
+
+    /**
+     * Clears the entire cache (memory and disk).
+     */
+    @Override
+    public void clear() {
+        clear(isDiskCacheEnabled);
+    }
+
+    /**
+     * Clears the memory cache, as well as the disk cache if it's enabled and
+     * <code>removeFromDisk</code> is <code>true</code>.
+     * 
+     * @param removeFromDisk
+     *            whether or not to wipe the disk cache, too
+     */
+    public void clear(boolean removeFromDisk) {
+        cache.invalidateAll();
+
+        if (removeFromDisk) {
+            WriteBehindQueue<KeyT, ValT> writeBehind = this.writeBehind;
+            if (writeBehind != null) {
+                writeBehind.clear();
+            }
+
+            DiskLruCache diskCache = getDiskCache();
+            if (diskCache != null) {
+                diskCache.removeAll();
+            }
+        }
+
+        FastImageLog.d(LOG_TAG, "Cache cleared");
+    }
+
+    @Override
+    public Collection<ValT> values() {
+        return cache.asMap().values();
+    }
+}
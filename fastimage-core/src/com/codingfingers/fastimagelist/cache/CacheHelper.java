@@ -0,0 +1,187 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import java.util.Set;
+
+public class CacheHelper {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final long FNV_64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+
+    /**
+     * Turns an url into a cache file name: the 64 bit FNV-1a hash of the url (with a final bit mix)
+     * in hex, prefixed with a subdirectory named after its first byte, e.g.
+     * <code>3f/3f2a9c01d4e5b678</code>. This keeps names short and spreads files over 256
+     * directories. Colliding urls are told apart by the disk cache, which stores the url with each
+     * entry.
+     */
+    public static String getFileNameFromUrl(String url) {
+        long hash = FNV_64_OFFSET_BASIS;
+        for (int i = 0, length = url.length(); i < length; i++) {
+            hash ^= url.charAt(i);
+            hash *= FNV_64_PRIME;
+        }
+        // FNV leaves the high bits of similar urls alike, mix them so the shards fill evenly
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        char[] name = new char[19];
+        for (int i = 18; i >= 3; i--) {
+            name[i] = HEX_DIGITS[(int) (hash & 0xf)];
+            hash >>>= 4;
+        }
+        name[0] = name[3];
+        name[1] = name[4];
+        name[2] = '/';
+        return new String(name);
+    }
+
+    /**
+     * Separates the url from the variant in cache keys. Valid urls don't contain spaces.
+     */
+    private static final String VARIANT_SEPARATOR = " @";
+
+    /**
+     * Number of recently built variant keys remembered, see {@link #getVariantKey}. A power of two.
+     */
+    private static final int RECENT_KEYS = 4096;
+
+    /**
+     * Recently built variant keys, by hash of their parts. A key may sit in either of two slots
+     * picked by different bits of the hash, so two keys sharing one slot don't keep replacing each
+     * other. Entries are immutable, so the array is read and written without locking.
+     */
+    private static final VariantKey[] recentKeys = new VariantKey[RECENT_KEYS];
+
+    private static final class VariantKey {
+        final String url;
+        final int width;
+        final int height;
+        final String transformationKey;
+        final String key;
+
+        VariantKey(String url, int width, int height, String transformationKey, String key) {
+            this.url = url;
+            this.width = width;
+            this.height = height;
+            this.transformationKey = transformationKey;
+            this.key = key;
+        }
+
+        boolean matches(String url, int width, int height, String transformationKey) {
+            return this.width == width && this.height == height && this.url.equals(url)
+                    && (transformationKey == null ? this.transformationKey == null
+                            : transformationKey.equals(this.transformationKey));
+        }
+    }
+
+    /**
+     * Builds the cache key of an image variant: the url, followed by the requested size and the
+     * key of the transformation applied, e.g. <code>http://host/a.jpg @100x100 circle</code>.
+     * Keys of images looked up again are remembered, so a memory hit allocates no new key.
+     * 
+     * @param width requested width, 0 or less for no limit
+     * @param height requested height, 0 or less for no limit
+     * @param transformationKey key of the transformation, or null
+     * @return the url itself for the full, untransformed image
+     */
+    public static String getVariantKey(String url, int width, int height, String transformationKey) {
+        if (width <= 0 && height <= 0 && transformationKey == null) {
+            return url;
+        }
+
+        int hash = (url.hashCode() * 31 + width) * 31 + height;
+        if (transformationKey != null) {
+            hash = hash * 31 + transformationKey.hashCode();
+        }
+        // urls differing in a few characters have close hash codes, spread them over all the bits
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        int first = hash & (RECENT_KEYS - 1);
+        int second = (hash >>> 16) & (RECENT_KEYS - 1);
+
+        VariantKey recent = recentKeys[first];
+        if (recent != null && recent.matches(url, width, height, transformationKey)) {
+            return recent.key;
+        }
+        VariantKey other = recentKeys[second];
+        if (other != null && other.matches(url, width, height, transformationKey)) {
+            return other.key;
+        }
+
+        String key = buildVariantKey(url, width, height, transformationKey);
+        int slot = recent == null || (other != null && hash < 0) ? first : second;
+        recentKeys[slot] = new VariantKey(url, width, height, transformationKey, key);
+        return key;
+    }
+
+    private static String buildVariantKey(String url, int width, int height, String transformationKey) {
+        StringBuilder key = new StringBuilder(url.length() + 24);
+        key.append(url).append(VARIANT_SEPARATOR);
+        key.append(Math.max(width, 0)).append('x').append(Math.max(height, 0));
+        if (transformationKey != null) {
+            key.append(' ').append(transformationKey);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the prefix shared by the keys of all variants of the url
+     */
+    public static String getVariantKeyPrefix(String url) {
+        return url + VARIANT_SEPARATOR;
+    }
+
+    /**
+     * @return the url of the image with the given cache key
+     */
+    public static String getUrlFromKey(String key) {
+        int separator = key.indexOf(VARIANT_SEPARATOR);
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    /**
+     * @return true if the key stands for a transformed image, not just a resized one
+     */
+    public static boolean isTransformedKey(String key) {
+        int separator = key.indexOf(VARIANT_SEPARATOR);
+        return separator >= 0 && key.indexOf(' ', separator + VARIANT_SEPARATOR.length()) >= 0;
+    }
+
+    public static void removeAllWithStringPrefix(AbstractCache<String, ?> cache, String urlPrefix) {
+        Set<String> keys = cache.keySet();
+
+        for (String key : keys) {
+            if (key.startsWith(urlPrefix)) {
+                cache.removeKey(key);
+            }
+        }
+
+        if (cache.isDiskCacheEnabled()) {
+            cache.removeAllFromDiskWithPrefix(urlPrefix);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+/**
+ * Validators (ETag, Last-Modified) and freshness lifetime of a downloaded image, stored with it in
+ * the disk cache. Once the image is stale, it is revalidated with a conditional request; a
+ * 304 Not Modified response makes it fresh again without transferring it.
+ */
+public class CacheValidators {
+
+    /**
+     * how long images with validators stay fresh if the server didn't say (no max-age)
+     */
+    public static final long DEFAULT_FRESHNESS_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final char SEPARATOR = '\n';
+
+    private final String etag;
+
+    private final String lastModified;
+
+    private final long expires;
+
+    /**
+     * @param etag
+     *            the ETag header, or null
+     * @param lastModified
+     *            the Last-Modified header, or null
+     * @param expires
+     *            time the image is fresh until, in milliseconds since the epoch
+     */
+    public CacheValidators(String etag, String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * Reads the validators and freshness of a response. Its max-age, if any, sets the freshness
+     * lifetime; no-cache and no-store make it stale at once, so it is revalidated on every use.
+     * 
+     * @param cacheControl
+     *            the Cache-Control header, or null
+     * @param now
+     *            time the response was received
+     * @return the validators, or null if the response has neither validators nor a max-age, the
+     *         cache default applies then
+     */
+    public static CacheValidators fromHeaders(String etag, String lastModified, String cacheControl,
+            long now) {
+        long maxAgeMillis = parseMaxAge(cacheControl);
+        if (maxAgeMillis < 0) {
+            if (etag == null && lastModified == null) {
+                return null;
+            }
+            maxAgeMillis = DEFAULT_FRESHNESS_MILLIS;
+        }
+        return new CacheValidators(etag, lastModified, now + maxAgeMillis);
+    }
+
+    /**
+     * @return the max-age in milliseconds, 0 if the response must be revalidated, -1 if not given
+     */
+    private static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+
+        long maxAgeMillis = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    maxAgeMillis = Math.max(0, Long.parseLong(directive.substring(8).trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    // ignore a malformed max-age
+                }
+            }
+        }
+        return maxAgeMillis;
+    }
+
+    /**
+     * @param response
+     *            validators of the 304 Not Modified response, or null if it had none
+     * @param now
+     *            time the response was received
+     * @return the validators after a successful revalidation: those sent with the 304 take
+     *         precedence, those missing are kept
+     */
+    public CacheValidators revalidated(CacheValidators response, long now) {
+        if (response == null) {
+            return new CacheValidators(etag, lastModified, now + DEFAULT_FRESHNESS_MILLIS);
+        }
+        return new CacheValidators(response.etag != null ? response.etag : etag,
+                response.lastModified != null ? response.lastModified : lastModified,
+                response.expires);
+    }
+
+    /**
+     * @return true if a conditional request can be made, i.e. there is an ETag or Last-Modified
+     */
+    public boolean canRevalidate() {
+        return etag != null || lastModified != null;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return the validators as disk cache metadata, see {@link #decode(String, long)}
+     */
+    String encode() {
+        return (etag != null ? etag : "") + SEPARATOR + (lastModified != null ? lastModified : "");
+    }
+
+    /**
+     * @param metadata
+     *            metadata written by {@link #encode()}, or null
+     * @param expires
+     *            the freshness lifetime of the disk cache entry
+     */
+    static CacheValidators decode(String metadata, long expires) {
+        if (metadata == null) {
+            return new CacheValidators(null, null, expires);
+        }
+        int separator = metadata.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return new CacheValidators(emptyToNull(metadata), null, expires);
+        }
+        return new CacheValidators(emptyToNull(metadata.substring(0, separator)),
+                emptyToNull(metadata.substring(separator + 1)), expires);
+    }
+
+    private static String emptyToNull(String s) {
+        return s.length() == 0 ? null : s;
+    }
+}
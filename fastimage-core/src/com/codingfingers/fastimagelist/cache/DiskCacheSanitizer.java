@@ -0,0 +1,84 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import java.util.List;
+
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.codingfingers.fastimagelist.util.ImageLogger;
+
+/**
+ * Opens the disk cache of an {@link AbstractCache} and removes its expired entries on a low
+ * priority background thread. The sweep goes through the journal state in small batches and
+ * pauses between them, so it never holds the disk cache lock for long and doesn't compete with
+ * image loading.
+ */
+class DiskCacheSanitizer implements Runnable {
+
+    /**
+     * entries checked per batch
+     */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * pause between batches, in milliseconds
+     */
+    private static final long BATCH_PAUSE = 20;
+
+    private final AbstractCache<?, ?> cache;
+
+    private final String name;
+
+    private DiskCacheSanitizer(AbstractCache<?, ?> cache, String name) {
+        this.cache = cache;
+        this.name = name;
+    }
+
+    /**
+     * Starts sanitizing the disk cache of the given cache.
+     */
+    static void start(AbstractCache<?, ?> cache, String name) {
+        Thread thread = new Thread(new DiskCacheSanitizer(cache, name), name + "-sanitizer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        // opening replays the journal, which is the expensive part of a cold start
+        DiskLruCache diskCache = cache.getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+
+        List<String> keys = diskCache.getKeys();
+        int removed = 0;
+        try {
+            for (int from = 0; from < keys.size(); from += BATCH_SIZE) {
+                int to = Math.min(from + BATCH_SIZE, keys.size());
+                removed += diskCache.removeExpired(keys.subList(from, to));
+                Thread.sleep(BATCH_PAUSE);
+            }
+        } catch (InterruptedException e) {
+            // stop sweeping, the rest will be expired on access
+        }
+
+        if (FastImageLog.isLoggable(ImageLogger.DEBUG)) {
+            FastImageLog.d(name, "DISK cache expiration of " + removed + " of " + keys.size() + " files");
+        }
+    }
+}
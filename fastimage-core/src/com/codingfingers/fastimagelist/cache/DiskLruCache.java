@@ -0,0 +1,959 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * A disk cache of files bounded by their total size. Each entry is a single file named after its
+ * key, living in the cache directory or in a subdirectory of it (keys may contain '/'). An entry
+ * can carry a tag, typically the original cache key the file name was derived from, which is used
+ * to tell apart keys whose file names collide and to find entries by prefix. Entries are evicted
+ * in least recently used order when the size limit is exceeded, and treated as absent once they
+ * are older than the maximum age.
+ * </p>
+ * <p>
+ * All changes are recorded in an append-only journal file, so opening the cache only has to read
+ * the journal rather than list and stat every file. Values are written through an {@link Editor}
+ * to a temporary file which replaces the entry on {@link Editor#commit()}; entries whose edit was
+ * interrupted by a crash are dropped when the cache is opened.
+ * </p>
+ * <p>
+ * The journal format (version 2), a header followed by one line per operation:
+ * 
+ * <pre>
+ *     fastimage.DiskLruCache
+ *     2
+ *
+ *     DIRTY key
+ *     CLEAN key length timestamp [tag]
+ *     META key expires [metadata]
+ *     REMOVE key
+ *     READ key
+ * </pre>
+ * 
+ * For example, an image committed with its url as tag, and validators that keep it fresh until
+ * <code>expires</code>:
+ * 
+ * <pre>
+ *     DIRTY 3f/3f2a9c01d4e5b678
+ *     CLEAN 3f/3f2a9c01d4e5b678 48213 1350000000000 http%3A%2F%2Fexample.com%2Fa.jpg
+ *     META 3f/3f2a9c01d4e5b678 1350086400000 %22v1%22%0A
+ * </pre>
+ * 
+ * DIRTY starts an edit, which must be followed by CLEAN (committed) or REMOVE (aborted or
+ * removed). READ only moves the entry to the front of the LRU order. META follows CLEAN for
+ * entries with a freshness lifetime or metadata, see {@link Editor#setMetadata}. Tags and metadata
+ * are URL-encoded. The tags are kept in a sorted index when the journal is read, so entries can be
+ * found by tag prefix in time proportional to the number of matches. A journal of another version
+ * is not read, the cache starts over empty.
+ * </p>
+ * <p>
+ * This class is thread safe. Its lock is only held for bookkeeping, file contents are read and
+ * written by the callers outside of it.
+ * </p>
+ */
+public class DiskLruCache {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "fastimage.DiskLruCache";
+    static final String VERSION = "2";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String META = "META";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAX_KEY_LENGTH = 120;
+
+    /**
+     * the journal is compacted once it holds this many lines that don't describe an entry
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+
+    private long maxSize;
+    private long maxAgeMillis;
+    private long size;
+
+    /**
+     * entries in LRU order, least recently used first; moved to the end by {@link #touch}
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * tagged entries, sorted by tag
+     */
+    private final TreeMap<String, Entry> tagIndex = new TreeMap<String, Entry>();
+
+    private Writer journalWriter;
+    private int redundantOpCount;
+
+    private DiskLruCache(File directory, long maxSize, long maxAgeMillis) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.maxSize = maxSize;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Opens the cache in the given directory, restoring its state from the journal. If there is no
+     * journal, or it cannot be read, the directory is wiped (files starting with a dot, such as
+     * .nomedia, are left alone) and an empty cache is created.
+     * 
+     * @param directory
+     *            the cache directory, created if needed
+     * @param maxSize
+     *            the maximum number of bytes the cache may use
+     * @param maxAgeMillis
+     *            entries older than this are treated as absent; 0 or less means no limit
+     * @return the cache
+     * @throws IOException
+     *             if the journal can't be created
+     */
+    public static DiskLruCache open(File directory, long maxSize, long maxAgeMillis)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        DiskLruCache cache = new DiskLruCache(directory, maxSize, maxAgeMillis);
+        if (cache.journalFile.exists()) {
+            try {
+                cache.readJournal();
+                cache.processJournal();
+                cache.journalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(cache.journalFile, true), "US-ASCII"));
+                cache.trimToSize();
+                return cache;
+            } catch (IOException e) {
+                // corrupt journal, start over
+                cache.closeJournal();
+            }
+        }
+
+        directory.mkdirs();
+        deleteContents(directory);
+        cache.entries.clear();
+        cache.tagIndex.clear();
+        cache.size = 0;
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                journalFile), "US-ASCII"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version
+                        + ", " + blank + "]");
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                // META lines describe entries along with their CLEAN line
+                if (!line.startsWith(META)) {
+                    lineCount++;
+                }
+            }
+            redundantOpCount = lineCount - entries.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        String key = parts[1];
+        if (parts[0].equals(REMOVE) && parts.length == 2) {
+            Entry removed = entries.remove(key);
+            if (removed != null) {
+                unindex(removed);
+            }
+            return;
+        }
+
+        Entry entry = entries.get(key);
+        if (parts[0].equals(META) && (parts.length == 3 || parts.length == 4)) {
+            if (entry == null || !entry.readable) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            try {
+                entry.expires = Long.parseLong(parts[2]);
+                entry.metadata = parts.length == 4 ? URLDecoder.decode(parts[3], "UTF-8") : null;
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            return;
+        }
+
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+
+        if (parts[0].equals(CLEAN) && (parts.length == 4 || parts.length == 5)) {
+            touch(entry);
+            try {
+                entry.length = Long.parseLong(parts[2]);
+                entry.timestamp = Long.parseLong(parts[3]);
+                unindex(entry);
+                entry.tag = parts.length == 5 ? URLDecoder.decode(parts[4], "UTF-8") : null;
+                index(entry);
+                // set by a following META line, if any
+                entry.expires = 0;
+                entry.metadata = null;
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            entry.readable = true;
+            entry.editing = false;
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            entry.editing = true;
+        } else if (parts[0].equals(READ) && parts.length == 2) {
+            touch(entry);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Computes the initial size and drops entries left in the middle of an edit.
+     */
+    private void processJournal() {
+        deleteIfExists(journalFileTmp);
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            Entry entry = i.next();
+            if (!entry.editing) {
+                size += entry.length;
+            } else {
+                entry.editing = false;
+                deleteIfExists(entry.getCleanFile());
+                deleteIfExists(entry.getDirtyFile());
+                i.remove();
+                unindex(entry);
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal holding only the current entries, replacing the old one.
+     */
+    private void rebuildJournal() throws IOException {
+        closeJournal();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                journalFileTmp), "US-ASCII"));
+        try {
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            writer.write('\n');
+            for (Entry entry : entries.values()) {
+                if (entry.editing) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else {
+                    writer.write(entry.getCleanLines());
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!journalFileTmp.renameTo(journalFile)) {
+            throw new IOException("failed to rename " + journalFileTmp);
+        }
+        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                journalFile, true), "US-ASCII"));
+        redundantOpCount = 0;
+    }
+
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException ignore) {
+            }
+            journalWriter = null;
+        }
+    }
+
+    private void journal(String line, boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            // losing a journal line only costs the entry after a restart
+            closeJournal();
+        }
+    }
+
+    private static void deleteContents(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            file.delete();
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (key.length() == 0 || key.length() > MAX_KEY_LENGTH || key.startsWith(".")
+                || key.startsWith("/") || key.endsWith("/") || key.contains("/.")
+                || key.endsWith(TMP_SUFFIX) || key.equals(JOURNAL_FILE)) {
+            throw new IllegalArgumentException("invalid cache key: \"" + key + "\"");
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                throw new IllegalArgumentException(
+                        "cache key must be printable ASCII without spaces: \"" + key + "\"");
+            }
+        }
+    }
+
+    private void index(Entry entry) {
+        if (entry.tag != null) {
+            tagIndex.put(entry.tag, entry);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (entry.tag != null && tagIndex.get(entry.tag) == entry) {
+            tagIndex.remove(entry.tag);
+        }
+    }
+
+    private void touch(Entry entry) {
+        entries.remove(entry.key);
+        entries.put(entry.key, entry);
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return maxAgeMillis > 0 && now - entry.timestamp >= maxAgeMillis;
+    }
+
+    /**
+     * @return true if the entry is past its freshness lifetime; such entries are kept, but must be
+     *         revalidated before use
+     */
+    private static boolean isStale(Entry entry, long now) {
+        return entry.expires > 0 && now >= entry.expires;
+    }
+
+    private static boolean tagMatches(Entry entry, String tag) {
+        return tag == null || entry.tag == null || tag.equals(entry.tag);
+    }
+
+    /**
+     * Same as {@link #get(String, String)} without checking the tag.
+     */
+    public File get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Returns the file holding the value for the key, or null if there is no readable, unexpired
+     * and fresh entry. Marks the entry as recently used. Stale entries stay in place, see
+     * {@link #isStale(String, String)}.
+     * 
+     * @param key
+     *            the entry key
+     * @param tag
+     *            if not null, an entry committed with a different tag is treated as absent
+     * @return the file to read the value from
+     */
+    public synchronized File get(String key, String tag) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.readable || !tagMatches(entry, tag)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(entry, now)) {
+            // an entry being rewritten is replaced on commit, removing it now would count its
+            // size twice, see removeExpired()
+            if (!entry.editing) {
+                removeEntry(entry);
+            }
+            return null;
+        }
+        if (isStale(entry, now)) {
+            return null;
+        }
+
+        touch(entry);
+        redundantOpCount++;
+        journal(READ + ' ' + key + '\n', false);
+        compactJournalIfNeeded();
+        return entry.getCleanFile();
+    }
+
+    /**
+     * Checks if there is a readable, unexpired and fresh entry for the key, without affecting the
+     * LRU order.
+     * 
+     * @param tag
+     *            if not null, an entry committed with a different tag is treated as absent
+     */
+    public synchronized boolean contains(String key, String tag) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        return entry != null && entry.readable && tagMatches(entry, tag)
+                && !isExpired(entry, now) && !isStale(entry, now);
+    }
+
+    /**
+     * Checks if there is a readable, unexpired entry for the key which is past its freshness
+     * lifetime, i.e. it has to be revalidated, see {@link #refresh}.
+     * 
+     * @param tag
+     *            if not null, an entry committed with a different tag is treated as absent
+     */
+    public synchronized boolean isStale(String key, String tag) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        return entry != null && entry.readable && tagMatches(entry, tag)
+                && !isExpired(entry, now) && isStale(entry, now);
+    }
+
+    /**
+     * @param tag
+     *            if not null, an entry committed with a different tag is treated as absent
+     * @return the metadata of the readable, unexpired entry for the key, fresh or stale, or null
+     */
+    public synchronized String getMetadata(String key, String tag) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.readable || !tagMatches(entry, tag)
+                || isExpired(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    /**
+     * Makes an entry fresh again without rewriting its value, e.g. once its source confirmed the
+     * value is unchanged. Restarts its age, and replaces its freshness lifetime and metadata.
+     * 
+     * @param tag
+     *            if not null, an entry committed with a different tag is left alone
+     * @param expires
+     *            time the entry is fresh until, in milliseconds since the epoch, 0 for no limit
+     *            other than the maximum age
+     * @param metadata
+     *            the new metadata, may be null
+     * @return true if the entry was refreshed, false if there is none or it is being edited
+     */
+    public synchronized boolean refresh(String key, String tag, long expires, String metadata) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.readable || entry.editing || !tagMatches(entry, tag)) {
+            return false;
+        }
+
+        entry.timestamp = System.currentTimeMillis();
+        entry.expires = expires;
+        entry.metadata = metadata;
+        touch(entry);
+        redundantOpCount++;
+        journal(entry.getCleanLines(), true);
+        compactJournalIfNeeded();
+        return true;
+    }
+
+    /**
+     * Same as {@link #edit(String, String)} without a tag.
+     */
+    public Editor edit(String key) {
+        return edit(key, null);
+    }
+
+    /**
+     * Starts editing the entry for the key.
+     * 
+     * @param key
+     *            the entry key
+     * @param tag
+     *            the tag stored with the entry once the edit is committed, may be null
+     * @return the editor, or null if another edit of the same entry is in progress
+     */
+    public synchronized Editor edit(String key, String tag) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        } else if (entry.editing) {
+            return null;
+        }
+
+        entry.editing = true;
+        // flush, so a crash during the write leaves a trace in the journal
+        journal(DIRTY + ' ' + key + '\n', true);
+        return new Editor(entry, tag);
+    }
+
+    private synchronized void completeEdit(Entry entry, String tag, long expires, String metadata,
+            boolean success) {
+        File dirty = entry.getDirtyFile();
+        entry.editing = false;
+        redundantOpCount++;
+
+        if (success) {
+            File clean = entry.getCleanFile();
+            long oldLength = entry.readable ? entry.length : 0;
+            clean.delete();
+            if (dirty.renameTo(clean)) {
+                entry.readable = true;
+                entry.length = clean.length();
+                entry.timestamp = System.currentTimeMillis();
+                unindex(entry);
+                entry.tag = tag;
+                index(entry);
+                entry.expires = expires;
+                entry.metadata = metadata;
+                size += entry.length - oldLength;
+                touch(entry);
+                journal(entry.getCleanLines(), true);
+            } else {
+                size -= oldLength;
+                entries.remove(entry.key);
+                unindex(entry);
+                journal(REMOVE + ' ' + entry.key + '\n', true);
+            }
+        } else if (entry.readable) {
+            // the previous value stays in place
+            journal(entry.getCleanLines(), true);
+        } else {
+            entries.remove(entry.key);
+            unindex(entry);
+            journal(REMOVE + ' ' + entry.key + '\n', true);
+        }
+        deleteIfExists(dirty);
+
+        trimToSize();
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Same as {@link #remove(String, String)} without checking the tag.
+     */
+    public boolean remove(String key) {
+        return remove(key, null);
+    }
+
+    /**
+     * Removes the entry for the key, unless it is being edited.
+     * 
+     * @param tag
+     *            if not null, an entry committed with a different tag is left alone
+     * @return true if an entry was removed
+     */
+    public synchronized boolean remove(String key, String tag) {
+        validateKey(key);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.editing || !tagMatches(entry, tag)) {
+            return false;
+        }
+
+        removeEntry(entry);
+        compactJournalIfNeeded();
+        return true;
+    }
+
+    private void removeEntry(Entry entry) {
+        deleteIfExists(entry.getCleanFile());
+        size -= entry.length;
+        entries.remove(entry.key);
+        unindex(entry);
+        redundantOpCount++;
+        journal(REMOVE + ' ' + entry.key + '\n', false);
+    }
+
+    /**
+     * Removes all entries which are not being edited.
+     */
+    public synchronized void removeAll() {
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (!entry.editing) {
+                removeEntry(entry);
+            }
+        }
+        flushJournal();
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Removes all entries whose tag starts with the given prefix. Only the tag index is consulted,
+     * so the cost is proportional to the number of matching entries.
+     * 
+     * @return the number of entries removed
+     */
+    public synchronized int removeAllWithTagPrefix(String tagPrefix) {
+        List<Entry> matches = new ArrayList<Entry>();
+        for (Map.Entry<String, Entry> indexed : tagIndex.tailMap(tagPrefix).entrySet()) {
+            if (!indexed.getKey().startsWith(tagPrefix)) {
+                break;
+            }
+            matches.add(indexed.getValue());
+        }
+
+        int removed = 0;
+        for (Entry entry : matches) {
+            if (!entry.editing) {
+                removeEntry(entry);
+                removed++;
+            }
+        }
+        flushJournal();
+        compactJournalIfNeeded();
+        return removed;
+    }
+
+    /**
+     * Removes all entries older than the maximum age.
+     * 
+     * @return the number of entries removed
+     */
+    public synchronized int removeExpired() {
+        if (maxAgeMillis <= 0) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (!entry.editing && isExpired(entry, now)) {
+                removeEntry(entry);
+                removed++;
+            }
+        }
+        flushJournal();
+        compactJournalIfNeeded();
+        return removed;
+    }
+
+    /**
+     * Removes those of the given entries which are older than the maximum age. Lets callers sweep
+     * the cache in small batches, see {@link #getKeys()}.
+     * 
+     * @param keys
+     *            keys of the entries to check, missing ones are skipped
+     * @return the number of entries removed
+     */
+    public synchronized int removeExpired(List<String> keys) {
+        if (maxAgeMillis <= 0) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (String key : keys) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.readable && !entry.editing && isExpired(entry, now)) {
+                removeEntry(entry);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            flushJournal();
+            compactJournalIfNeeded();
+        }
+        return removed;
+    }
+
+    /**
+     * @return a snapshot of the keys of all entries, least recently used first
+     */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * @return the files of all readable entries, least recently used first
+     */
+    public synchronized List<File> getFiles() {
+        List<File> files = new ArrayList<File>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.readable) {
+                files.add(entry.getCleanFile());
+            }
+        }
+        return files;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of bytes currently used by the cache
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache may use, evicting entries if needed.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize();
+        flushJournal();
+    }
+
+    /**
+     * Flushes pending journal lines to disk.
+     */
+    public synchronized void flush() {
+        flushJournal();
+    }
+
+    /**
+     * Closes the journal. The cache must not be used afterwards.
+     */
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    private void flushJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.flush();
+            } catch (IOException e) {
+                closeJournal();
+            }
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> i = entries.values().iterator();
+        while (size > maxSize && i.hasNext()) {
+            Entry entry = i.next();
+            if (entry.editing || !entry.readable) {
+                continue;
+            }
+            deleteIfExists(entry.getCleanFile());
+            size -= entry.length;
+            i.remove();
+            unindex(entry);
+            redundantOpCount++;
+            journal(REMOVE + ' ' + entry.key + '\n', false);
+        }
+    }
+
+    private void compactJournalIfNeeded() {
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= entries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                // keep appending to the old journal, if it's still open
+            }
+        }
+    }
+
+    /**
+     * Edits the value of an entry. Write the value to {@link #getFile()}, then call either
+     * {@link #commit()} or {@link #abort()}.
+     */
+    public final class Editor {
+        private final Entry entry;
+        private final String tag;
+        private long expires;
+        private String metadata;
+        private boolean done;
+
+        private Editor(Entry entry, String tag) {
+            this.entry = entry;
+            this.tag = tag;
+        }
+
+        /**
+         * @return the temporary file the new value should be written to
+         */
+        public File getFile() {
+            File file = entry.getDirtyFile();
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            return file;
+        }
+
+        /**
+         * Sets the freshness lifetime and metadata stored with the value once committed. By
+         * default the value is fresh until it reaches the maximum age, and has no metadata.
+         * 
+         * @param expires
+         *            time the value is fresh until, in milliseconds since the epoch, 0 for no limit
+         *            other than the maximum age; stale values are kept, see {@link #isStale}
+         * @param metadata
+         *            text describing the value, e.g. how to revalidate it, may be null
+         */
+        public void setMetadata(long expires, String metadata) {
+            this.expires = expires;
+            this.metadata = metadata;
+        }
+
+        /**
+         * Publishes the written value, replacing the previous one.
+         */
+        public void commit() throws IOException {
+            if (done) {
+                throw new IllegalStateException("edit already completed");
+            }
+            done = true;
+            if (!entry.getDirtyFile().exists()) {
+                completeEdit(entry, tag, expires, metadata, false);
+                throw new EOFException("nothing written for " + entry.key);
+            }
+            completeEdit(entry, tag, expires, metadata, true);
+        }
+
+        /**
+         * Discards the written value, the previous one (if any) stays in place.
+         */
+        public void abort() {
+            if (!done) {
+                done = true;
+                completeEdit(entry, tag, expires, metadata, false);
+            }
+        }
+    }
+
+    private final class Entry {
+        private final String key;
+        private long length;
+        private long timestamp;
+        private String tag;
+        private long expires;
+        private String metadata;
+        private boolean readable;
+        private boolean editing;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        File getCleanFile() {
+            return new File(directory, key);
+        }
+
+        File getDirtyFile() {
+            return new File(directory, key + TMP_SUFFIX);
+        }
+
+        String getCleanLine() {
+            if (tag == null) {
+                return CLEAN + ' ' + key + ' ' + length + ' ' + timestamp + '\n';
+            }
+            try {
+                return CLEAN + ' ' + key + ' ' + length + ' ' + timestamp + ' '
+                        + URLEncoder.encode(tag, "UTF-8") + '\n';
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * @return the CLEAN line, followed by the META line if the entry has a freshness lifetime
+         *         or metadata
+         */
+        String getCleanLines() {
+            String clean = getCleanLine();
+            if (expires == 0 && metadata == null) {
+                return clean;
+            }
+            if (metadata == null) {
+                return clean + META + ' ' + key + ' ' + expires + '\n';
+            }
+            try {
+                return clean + META + ' ' + key + ' ' + expires + ' '
+                        + URLEncoder.encode(metadata, "UTF-8") + '\n';
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Cache of encoded images, kept as the bytes downloaded, by url. Needs no platform to decode
+ * images, so the memory and disk tiers can serve images on a server, e.g. to a thumbnail service,
+ * or be load-tested on a plain JVM. Subclass {@link AbstractCache} to cache decoded images instead.
+ */
+public class ImageBytesCache extends AbstractCache<String, byte[]> {
+
+    /**
+     * @param maxMemorySize
+     *            bytes of images held in memory, 0 or less for no bound; images bigger than that
+     *            are only cached on disk
+     * @see AbstractCache#AbstractCache(String, int, long, long, int)
+     */
+    public ImageBytesCache(String name, int initialCapacity, long maxMemorySize,
+            long expirationInMinutes, int maxConcurrentThreads) {
+        super(name, initialCapacity, maxMemorySize, expirationInMinutes, maxConcurrentThreads);
+    }
+
+    /**
+     * In-memory entries are weighted by their length in bytes.
+     */
+    @Override
+    protected int sizeOf(String key, byte[] value) {
+        return value.length;
+    }
+
+    /**
+     * Caches downloaded bytes along with their HTTP validators, so they are revalidated once
+     * stale, see {@link #getStaleValidators}. The file is written right away, even if
+     * write-behind is enabled, and replaces a stale one only once it is complete.
+     * 
+     * @param validators
+     *            validators of the download, or null
+     * @throws IOException
+     *             if writing the file failed, the bytes are still cached in memory then
+     */
+    public void put(String url, byte[] value, CacheValidators validators) throws IOException {
+        putInMemory(url, value);
+
+        DiskLruCache.Editor editor = editOnDisk(url);
+        if (editor == null) {
+            return;
+        }
+        boolean committed = false;
+        try {
+            writeValueToDisk(editor.getFile(), value);
+            setMetadata(editor, validators);
+            editor.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * @return true if the image is on disk, but past its freshness lifetime, so it has to be
+     *         revalidated or downloaded again before use
+     */
+    public boolean isStale(String url) {
+        return isStaleOnDisk(url);
+    }
+
+    @Override
+    public String getFileNameForKey(String imageUrl) {
+        return CacheHelper.getFileNameFromUrl(imageUrl);
+    }
+
+    @Override
+    protected byte[] readValueFromDisk(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] value = new byte[(int) input.length()];
+            input.readFully(value);
+            return value;
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    protected void writeValueToDisk(File file, byte[] value) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(value);
+        } finally {
+            output.close();
+        }
+    }
+}
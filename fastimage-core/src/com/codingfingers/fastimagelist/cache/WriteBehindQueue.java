@@ -0,0 +1,173 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codingfingers.fastimagelist.util.FastImageLog;
+
+/**
+ * Persists cache values on a background thread. Values waiting to be written stay readable through
+ * {@link #getPending}; when a key is put again before its value was written, only the latest value
+ * is written.
+ * 
+ * @param <KeyT>
+ *            the cache key type
+ * @param <ValT>
+ *            the cache value type
+ */
+class WriteBehindQueue<KeyT, ValT> {
+
+    /**
+     * the most writes the background thread performs before notifying flush() waiters
+     */
+    private static final int MAX_BATCH_SIZE = 16;
+
+    interface DiskWriter<KeyT, ValT> {
+        /**
+         * Writes the pending value of the key, if it still has one.
+         */
+        void writePending(KeyT key);
+
+        /**
+         * Called after a batch of writes.
+         */
+        void batchWritten();
+    }
+
+    private final BlockingQueue<KeyT> queue;
+
+    private final ConcurrentMap<KeyT, ValT> pending = new ConcurrentHashMap<KeyT, ValT>();
+
+    private final DiskWriter<KeyT, ValT> writer;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    WriteBehindQueue(String name, int capacity, DiskWriter<KeyT, ValT> writer) {
+        this.queue = new ArrayBlockingQueue<KeyT>(capacity);
+        this.writer = writer;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, name + "-writer");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.NORM_PRIORITY - 1);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules the value to be written. Blocks while the queue is full, which throttles
+     * producers to the speed of the disk.
+     */
+    void enqueue(KeyT key, ValT value) throws InterruptedException {
+        if (pending.put(key, value) == null) {
+            queue.put(key);
+        }
+    }
+
+    ValT getPending(Object key) {
+        return pending.get(key);
+    }
+
+    boolean isPending(Object key) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * Marks the value as written. Returns false if the key was put again in the meantime, its new
+     * value has to be written too.
+     */
+    boolean written(KeyT key, ValT value) {
+        return pending.remove(key, value);
+    }
+
+    Set<KeyT> getPendingKeys() {
+        return pending.keySet();
+    }
+
+    ValT removePending(Object key) {
+        return pending.remove(key);
+    }
+
+    void clear() {
+        pending.clear();
+    }
+
+    /**
+     * @return the number of values waiting to be written
+     */
+    int getDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Blocks until all values queued so far are written.
+     */
+    void flush() throws InterruptedException {
+        synchronized (this) {
+            while (!pending.isEmpty() && running) {
+                wait(100);
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining values and stops the background thread.
+     */
+    void shutdown() throws InterruptedException {
+        flush();
+        running = false;
+        thread.interrupt();
+    }
+
+    private void processQueue() {
+        List<KeyT> batch = new ArrayList<KeyT>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            for (KeyT key : batch) {
+                try {
+                    writer.writePending(key);
+                } catch (RuntimeException e) {
+                    // don't let a single bad value stop the writer
+                    pending.remove(key);
+                    FastImageLog.e(thread.getName(), "Failed writing to DISK", e);
+                }
+            }
+            batch.clear();
+            writer.batchWritten();
+
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
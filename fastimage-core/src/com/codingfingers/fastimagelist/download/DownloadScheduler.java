@@ -0,0 +1,268 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs image loading work on two dedicated thread pools: one for network transfers and one for
+ * disk reads and decoding, so slow downloads never hold up decoding of cached images. Queued jobs
+ * run by descending priority and, within a priority, newest first, so the views bound last
+ * (the ones on screen) load first. A job that became {@link Job#isStale() stale} while queued is
+ * dropped without running. Queues are unbounded, work is never rejected.
+ * <p>
+ * Background jobs (priority below {@link #PRIORITY_VISIBLE}, e.g. prefetching) never take the
+ * last free thread of a pool, it is kept for visible requests.
+ */
+public class DownloadScheduler {
+
+	/**
+	 * priority of images requested for visible views
+	 */
+	public static final int PRIORITY_VISIBLE = 10;
+	
+	/**
+	 * priority of images prefetched for views that are about to become visible
+	 */
+	public static final int PRIORITY_PREFETCH = 0;
+	
+	public static final int DEFAULT_NETWORK_THREADS = 4;
+	public static final int DEFAULT_DECODE_THREADS = 2;
+	
+	private static DownloadScheduler defaultScheduler;
+	
+	private final Pool networkPool;
+	private final Pool decodePool;
+	
+	private final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * Work scheduled on one of the pools.
+	 */
+	public static abstract class Job implements Runnable, Comparable<Job>
+	{
+		private final int priority;
+		private long sequenceNumber;
+		private Pool pool;
+		
+		protected Job(int priority)
+		{
+			this.priority = priority;
+		}
+		
+		public int getPriority()
+		{
+			return priority;
+		}
+		
+		/**
+		 * @return true if the result is no longer needed, checked right before the job starts
+		 */
+		protected boolean isStale()
+		{
+			return false;
+		}
+		
+		/**
+		 * Called instead of {@link #execute()} when the job is dropped.
+		 */
+		protected void onDropped()
+		{
+		}
+		
+		protected abstract void execute();
+		
+		@Override
+		public final void run()
+		{
+			if(isStale())
+			{
+				onDropped();
+				return;
+			}
+			
+			if(priority >= PRIORITY_VISIBLE)
+			{
+				execute();
+				return;
+			}
+			
+			if(!pool.startBackground(this))
+				return;
+			try {
+				execute();
+			}
+			finally {
+				pool.finishBackground();
+			}
+		}
+		
+		@Override
+		public int compareTo(Job other)
+		{
+			if(priority != other.priority)
+				return priority > other.priority ? -1 : 1;
+			
+			// newest first
+			if(sequenceNumber != other.sequenceNumber)
+				return sequenceNumber > other.sequenceNumber ? -1 : 1;
+			return 0;
+		}
+	}
+	
+	/**
+	 * @param networkThreads number of threads doing network transfers
+	 * @param decodeThreads number of threads reading from disk and decoding
+	 */
+	public DownloadScheduler(int networkThreads, int decodeThreads)
+	{
+		networkPool = new Pool(networkThreads, "FastImage-network");
+		decodePool = new Pool(decodeThreads, "FastImage-decode");
+	}
+	
+	/**
+	 * @return scheduler shared by downloaders which don't set their own
+	 */
+	public static synchronized DownloadScheduler getDefault()
+	{
+		if(defaultScheduler == null)
+		{
+			defaultScheduler = new DownloadScheduler(DEFAULT_NETWORK_THREADS, DEFAULT_DECODE_THREADS);
+		}
+		return defaultScheduler;
+	}
+	
+	/**
+	 * Thread pool which runs at most threads - 1 background jobs at a time, background jobs
+	 * over the limit wait in a separate queue.
+	 */
+	private static class Pool
+	{
+		final ThreadPoolExecutor executor;
+		private final int maxBackground;
+		private int runningBackground;
+		private final PriorityQueue<Job> deferredBackground = new PriorityQueue<Job>();
+		
+		Pool(int threads, String name)
+		{
+			executor = createExecutor(threads, name);
+			maxBackground = Math.max(1, threads - 1);
+		}
+		
+		void execute(Job job)
+		{
+			job.pool = this;
+			executor.execute(job);
+		}
+		
+		synchronized boolean startBackground(Job job)
+		{
+			if(runningBackground < maxBackground)
+			{
+				runningBackground++;
+				return true;
+			}
+			
+			deferredBackground.add(job);
+			return false;
+		}
+		
+		void finishBackground()
+		{
+			Job next;
+			synchronized (this) {
+				runningBackground--;
+				next = deferredBackground.poll();
+			}
+			
+			if(next != null && !executor.isShutdown())
+				executor.execute(next);
+		}
+		
+		synchronized int getQueueSize()
+		{
+			return executor.getQueue().size() + deferredBackground.size();
+		}
+	}
+	
+	private static ThreadPoolExecutor createExecutor(int threads, final String name)
+	{
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + " #" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		};
+		
+		// core = max size, as a ThreadPoolExecutor only grows beyond core size when the queue is full
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), threadFactory);
+	}
+	
+	/**
+	 * Queues a network transfer.
+	 */
+	public void executeNetwork(Job job)
+	{
+		job.sequenceNumber = sequence.incrementAndGet();
+		networkPool.execute(job);
+	}
+	
+	/**
+	 * Queues a disk read or decode.
+	 */
+	public void executeDecode(Job job)
+	{
+		job.sequenceNumber = sequence.incrementAndGet();
+		decodePool.execute(job);
+	}
+	
+	/**
+	 * @return number of network jobs waiting to start
+	 */
+	public int getNetworkQueueSize()
+	{
+		return networkPool.getQueueSize();
+	}
+	
+	/**
+	 * @return number of decode jobs waiting to start
+	 */
+	public int getDecodeQueueSize()
+	{
+		return decodePool.getQueueSize();
+	}
+	
+	/**
+	 * Stops the threads once queued work is done.
+	 */
+	public void shutdown()
+	{
+		networkPool.executor.shutdown();
+		decodePool.executor.shutdown();
+	}
+}
@@ -0,0 +1,265 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link ImageTransport} on top of {@link HttpURLConnection}, keeping HTTP/1.1 connections alive
+ * between images.
+ * <p>
+ * The platform keeps idle keep-alive connections in a per host pool (its size is the
+ * <code>http.maxConnections</code> system property, 5 by default), but only takes a connection
+ * back if its response body was read to the end and closed. <code>disconnect()</code> closes the
+ * socket, so every image would pay TCP and TLS setup again. Closing a response here drains what is
+ * left of a small body instead, and only disconnects if keep-alive is off or too much is left,
+ * e.g. after a cancelled download.
+ * <p>
+ * Requests to a host are limited to {@link #getMaxConnectionsPerHost()} at a time, so no more
+ * connections are opened than the pool keeps.
+ */
+public class HttpUrlConnectionTransport implements ImageTransport {
+	
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+	
+	/**
+	 * most bytes read from an abandoned body to keep its connection
+	 */
+	public static final int DRAIN_LIMIT = 16 * 1024;
+	
+	private static HttpUrlConnectionTransport defaultTransport;
+	
+	private final boolean keepAlive;
+	private final int maxConnectionsPerHost;
+	
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	
+	/**
+	 * free request slots by host
+	 */
+	private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+	
+	/**
+	 * @param keepAlive false to close every connection after its response
+	 * @param maxConnectionsPerHost requests running at a time per host, 0 for no limit
+	 */
+	public HttpUrlConnectionTransport(boolean keepAlive, int maxConnectionsPerHost)
+	{
+		this.keepAlive = keepAlive;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+	
+	/**
+	 * @return transport shared by downloaders which don't set their own
+	 */
+	public static synchronized HttpUrlConnectionTransport getDefault()
+	{
+		if(defaultTransport == null)
+		{
+			defaultTransport = new HttpUrlConnectionTransport(true, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		}
+		return defaultTransport;
+	}
+	
+	@Override
+	public Response open(String url, Map<String, String> requestHeaders) throws IOException {
+		URL target = new URL(url);
+		Semaphore slots = acquire(target.getHost());
+		
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) target.openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			if(!keepAlive)
+				connection.setRequestProperty("Connection", "close");
+			if(requestHeaders != null)
+			{
+				for(Map.Entry<String, String> header : requestHeaders.entrySet())
+					connection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			
+			// sends the request
+			connection.getResponseCode();
+			return new ConnectionResponse(connection, slots);
+		}
+		catch (IOException e) {
+			if(connection != null)
+				connection.disconnect();
+			if(slots != null)
+				slots.release();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			if(connection != null)
+				connection.disconnect();
+			if(slots != null)
+				slots.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Waits for a free request slot of the host.
+	 * @return slot to release once the response is closed, or null if there is no limit
+	 */
+	private Semaphore acquire(String host) throws IOException {
+		if(maxConnectionsPerHost <= 0)
+			return null;
+		
+		Semaphore slots = hosts.get(host);
+		if(slots == null)
+		{
+			Semaphore newSlots = new Semaphore(maxConnectionsPerHost);
+			slots = hosts.putIfAbsent(host, newSlots);
+			if(slots == null)
+				slots = newSlots;
+		}
+		
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + host);
+		}
+		return slots;
+	}
+	
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+	
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/**
+	 * @param connectTimeout in milliseconds, 0 to wait forever
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	
+	/**
+	 * @param readTimeout in milliseconds, 0 to wait forever
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	
+	private class ConnectionResponse implements Response
+	{
+		private final HttpURLConnection connection;
+		private final Semaphore slots;
+		private InputStream body;
+		private boolean closed;
+		
+		ConnectionResponse(HttpURLConnection connection, Semaphore slots)
+		{
+			this.connection = connection;
+			this.slots = slots;
+		}
+		
+		@Override
+		public int getCode() throws IOException {
+			return connection.getResponseCode();
+		}
+		
+		@Override
+		public int getContentLength() {
+			return connection.getContentLength();
+		}
+		
+		@Override
+		public String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+		
+		@Override
+		public synchronized InputStream getBody() throws IOException {
+			if(body == null)
+				body = connection.getInputStream();
+			return body;
+		}
+		
+		@Override
+		public synchronized void close() {
+			if(closed)
+				return;
+			closed = true;
+			
+			if(!keepAlive || !drain())
+				connection.disconnect();
+			
+			if(slots != null)
+				slots.release();
+		}
+		
+		/**
+		 * Reads the rest of the body, or of the error message, so the connection goes back to the pool.
+		 * @return false if the connection can't be reused
+		 */
+		private boolean drain() {
+			InputStream remaining = body;
+			try {
+				if(remaining == null)
+				{
+					remaining = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ?
+							connection.getErrorStream() : connection.getInputStream();
+					if(remaining == null)
+						// no body
+						return true;
+				}
+				
+				byte[] buffer = new byte[4096];
+				int drained = 0;
+				while(drained <= DRAIN_LIMIT)
+				{
+					int bytesRead = remaining.read(buffer);
+					if(bytesRead == -1)
+					{
+						remaining.close();
+						return true;
+					}
+					drained += bytesRead;
+				}
+				return false;
+			}
+			catch (IOException e) {
+				// closed or broken
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.codingfingers.fastimagelist.cache.CacheValidators;
+import com.codingfingers.fastimagelist.download.InFlightRegistry.Flight;
+import com.codingfingers.fastimagelist.util.ByteArrayPool;
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.codingfingers.fastimagelist.util.ImageLogger;
+
+/**
+ * Reading of image downloads, whatever the image is decoded into: request headers revalidating a
+ * cached image, validators of the response, and its body read with progress and cancellation.
+ */
+public final class ImageFetcher {
+	
+	private static final String TAG = "ImageFetcher";
+	
+	/**
+	 * first buffer for a body of unknown length, doubled as it fills up
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 10 * 1024;
+	
+	/**
+	 * Progress of a download, called on the downloading thread.
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * @param bytesTotalOrMinusOne size of the body, -1 if unknown
+		 */
+		void onProgress(int bytesRead, int bytesTotalOrMinusOne);
+	}
+	
+	private ImageFetcher()
+	{
+	}
+	
+	/**
+	 * @param stale validators of the cached image to revalidate, or null for a plain request
+	 * @return request headers, or null if none
+	 */
+	public static Map<String, String> getConditionalHeaders(CacheValidators stale) {
+		if(stale == null)
+			return null;
+		
+		Map<String, String> headers = new HashMap<String, String>();
+		if(stale.getEtag() != null)
+			headers.put("If-None-Match", stale.getEtag());
+		if(stale.getLastModified() != null)
+			headers.put("If-Modified-Since", stale.getLastModified());
+		return headers;
+	}
+	
+	/**
+	 * @return the validators and freshness of the response, or null if it has none
+	 */
+	public static CacheValidators readValidators(ImageTransport.Response response) {
+		return CacheValidators.fromHeaders(response.getHeader("ETag"), response.getHeader("Last-Modified"),
+				response.getHeader("Cache-Control"), System.currentTimeMillis());
+	}
+	
+	/**
+	 * Reads the whole body of a response. The body is not closed, it is closed with the response.
+	 * @param flight download the body belongs to, reading stops once it is cancelled; or null
+	 * @param listener listener of the progress, or null
+	 * @return the body, or null if the flight was cancelled
+	 * @throws IOException if reading failed, or the body is shorter than its Content-Length
+	 */
+	public static byte[] readBody(ImageTransport.Response response, Flight<?> flight, ProgressListener listener)
+			throws IOException {
+		if(isCancelled(flight))
+			return null;
+		
+		// no BufferedInputStream, we always read in big chunks straight into the target array
+		InputStream istream = response.getBody();
+		int fileSize = response.getContentLength();
+		if(fileSize <= 0)
+		{
+			if(FastImageLog.isLoggable(ImageLogger.WARN))
+				FastImageLog.w(TAG, "Server did not set a Content-Length header, will default to buffer size of "
+						+ DEFAULT_BUFFER_SIZE + " bytes");
+			return readUnknownLength(istream, flight, listener);
+		}
+		
+		byte[] imageData = new byte[fileSize];
+		int offset = 0;
+		while(offset < fileSize)
+		{
+			int bytesRead = istream.read(imageData, offset, fileSize - offset);
+			if(bytesRead == -1)
+				throw new IOException("Unexpected end of stream after " + offset + " of " + fileSize + " bytes");
+			offset += bytesRead;
+			if(isCancelled(flight))
+				return null;
+			
+			if(listener != null)
+				listener.onProgress(offset, fileSize);
+		}
+		return imageData;
+	}
+	
+	/**
+	 * Reads the stream into pooled buffers, doubling the buffer when it fills up, and copies
+	 * the result once into an array of the exact size.
+	 */
+	private static byte[] readUnknownLength(InputStream istream, Flight<?> flight, ProgressListener listener)
+			throws IOException {
+		ByteArrayPool pool = ByteArrayPool.getShared();
+		byte[] buffer = pool.acquire(DEFAULT_BUFFER_SIZE);
+		try {
+			int bytesReadTotal = 0;
+			while (true) {
+				if (bytesReadTotal == buffer.length) {
+					byte[] bigger = pool.acquire(buffer.length * 2);
+					System.arraycopy(buffer, 0, bigger, 0, bytesReadTotal);
+					pool.release(buffer);
+					buffer = bigger;
+				}
+				
+				int bytesRead = istream.read(buffer, bytesReadTotal, buffer.length - bytesReadTotal);
+				if (bytesRead == -1)
+					break;
+				bytesReadTotal += bytesRead;
+				
+				if(listener != null)
+					listener.onProgress(bytesReadTotal, -1);
+				if(isCancelled(flight)) return null;
+			}
+			
+			byte[] imageData = new byte[bytesReadTotal];
+			System.arraycopy(buffer, 0, imageData, 0, bytesReadTotal);
+			return imageData;
+		} finally {
+			pool.release(buffer);
+		}
+	}
+	
+	private static boolean isCancelled(Flight<?> flight)
+	{
+		return flight != null && flight.isCancelled();
+	}
+	
+	/**
+	 * Reports download progress, and stops the download by failing once its flight is cancelled.
+	 * Lets a cache read the body straight from the network.
+	 */
+	public static class ProgressInputStream extends FilterInputStream
+	{
+		private final Flight<?> flight;
+		private final ProgressListener listener;
+		private final int bytesTotalOrMinusOne;
+		private int bytesReadTotal;
+		
+		/**
+		 * @param flight download the stream belongs to, or null
+		 * @param listener listener of the progress, or null
+		 * @param fileSize size of the body, 0 or less if unknown
+		 */
+		public ProgressInputStream(InputStream in, Flight<?> flight, ProgressListener listener, int fileSize)
+		{
+			super(in);
+			this.flight = flight;
+			this.listener = listener;
+			this.bytesTotalOrMinusOne = fileSize > 0 ? fileSize : -1;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			int b = in.read();
+			if(b != -1)
+				progress(1);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkCancelled();
+			int bytesRead = in.read(buffer, offset, count);
+			if(bytesRead > 0)
+				progress(bytesRead);
+			return bytesRead;
+		}
+		
+		private void checkCancelled() throws IOException {
+			if(isCancelled(flight))
+				throw new IOException("Download cancelled: " + flight.getKey());
+		}
+		
+		private void progress(int bytesRead) {
+			bytesReadTotal += bytesRead;
+			if(listener != null)
+				listener.onProgress(bytesReadTotal, bytesTotalOrMinusOne);
+		}
+		
+		public int getBytesRead() {
+			return bytesReadTotal;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Transfers images for a downloader. Implementations may keep connections open between
+ * requests, a response has to be {@link Response#close() closed} for its connection to be
+ * released.
+ */
+public interface ImageTransport {
+	
+	/**
+	 * Sends a GET request and waits for the response headers.
+	 * @param url image url
+	 * @param requestHeaders extra request headers, or null
+	 * @return response, to be closed by the caller
+	 * @throws IOException if the request failed
+	 */
+	Response open(String url, Map<String, String> requestHeaders) throws IOException;
+	
+	/**
+	 * Response to an image request.
+	 */
+	interface Response
+	{
+		/**
+		 * @return HTTP status code
+		 */
+		int getCode() throws IOException;
+		
+		/**
+		 * @return length of the body in bytes, or -1 if unknown
+		 */
+		int getContentLength();
+		
+		/**
+		 * @return value of the response header, or null if not present
+		 */
+		String getHeader(String name);
+		
+		/**
+		 * @return body of the response, closed along with the response
+		 * @throws IOException if the request failed, or the server returned an error
+		 */
+		InputStream getBody() throws IOException;
+		
+		/**
+		 * Releases the connection, for reuse if possible. Safe to call more than once.
+		 */
+		void close();
+	}
+}
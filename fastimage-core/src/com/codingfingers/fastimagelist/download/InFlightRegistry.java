@@ -0,0 +1,223 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registry of fetches in progress, keyed by url. Requests for an url that is already being
+ * fetched attach to the pending {@link Flight} instead of starting their own, and all of them
+ * get the same result.
+ * 
+ * @param <T> type of the fetch result
+ */
+public class InFlightRegistry<T> {
+
+	private final ConcurrentMap<String, Flight<T>> flights = new ConcurrentHashMap<String, Flight<T>>();
+	
+	/**
+	 * Subscribes to the fetch of the given key, starting a new one if there is none in progress.
+	 * The first subscriber that {@link Flight#claim()}s the flight has to do the work and
+	 * {@link #complete} it, others should {@link Flight#await()} the result or
+	 * {@link Flight#addListener listen} for it.
+	 * @param key url
+	 * @return subscribed flight
+	 */
+	public Flight<T> join(String key)
+	{
+		while(true)
+		{
+			Flight<T> flight = flights.get(key);
+			if(flight == null)
+			{
+				Flight<T> newFlight = new Flight<T>(key);
+				newFlight.subscribe();
+				flight = flights.putIfAbsent(key, newFlight);
+				if(flight == null)
+					return newFlight;
+			}
+			
+			if(flight.subscribe())
+				return flight;
+			
+			// finished or cancelled, but not yet removed
+			flights.remove(key, flight);
+		}
+	}
+	
+	/**
+	 * Unsubscribes from the flight. When the last subscriber leaves a flight that has not
+	 * finished yet, the flight is cancelled.
+	 * @param flight flight returned by {@link #join}
+	 */
+	public void leave(Flight<T> flight)
+	{
+		if(flight.unsubscribe())
+		{
+			flights.remove(flight.key, flight);
+			flight.notifyListeners();
+		}
+	}
+	
+	/**
+	 * Publishes the result to all subscribers. Called by the subscriber that claimed the flight.
+	 * @param flight flight returned by {@link #join}
+	 * @param result fetch result, null on error
+	 */
+	public void complete(Flight<T> flight, T result)
+	{
+		flights.remove(flight.key, flight);
+		flight.finish(result);
+		flight.notifyListeners();
+	}
+	
+	/**
+	 * @return number of fetches in progress
+	 */
+	public int size()
+	{
+		return flights.size();
+	}
+	
+	public interface Listener<T>
+	{
+		/**
+		 * Called on the thread that completed or cancelled the flight.
+		 * @param result fetch result, null on error or if the flight was cancelled
+		 */
+		void onFlightDone(T result);
+	}
+	
+	public static final class Flight<T>
+	{
+		private final String key;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final CountDownLatch done = new CountDownLatch(1);
+		
+		private int subscribers;
+		private boolean finished;
+		private boolean cancelled;
+		private volatile T result;
+		private List<Listener<T>> listeners;
+		
+		private Flight(String key)
+		{
+			this.key = key;
+		}
+		
+		public String getKey()
+		{
+			return key;
+		}
+		
+		/**
+		 * @return true only for the first caller, which becomes responsible for the fetch
+		 */
+		public boolean claim()
+		{
+			return claimed.compareAndSet(false, true);
+		}
+		
+		/**
+		 * @return true if all subscribers left before the fetch finished, the fetch should be
+		 * aborted then
+		 */
+		public synchronized boolean isCancelled()
+		{
+			return cancelled;
+		}
+		
+		/**
+		 * Waits for the subscriber that claimed this flight to complete it.
+		 * @return fetch result, null on error or if the flight was cancelled
+		 * @throws InterruptedException
+		 */
+		public T await() throws InterruptedException
+		{
+			done.await();
+			return result;
+		}
+		
+		/**
+		 * Registers a listener for the result. If the flight is already done, the listener is
+		 * called right away, on the calling thread.
+		 */
+		public void addListener(Listener<T> listener)
+		{
+			synchronized (this) {
+				if(!finished && !cancelled)
+				{
+					if(listeners == null)
+						listeners = new ArrayList<Listener<T>>(2);
+					listeners.add(listener);
+					return;
+				}
+			}
+			listener.onFlightDone(result);
+		}
+		
+		private void notifyListeners()
+		{
+			List<Listener<T>> toNotify;
+			synchronized (this) {
+				toNotify = listeners;
+				listeners = null;
+			}
+			
+			if(toNotify != null)
+			{
+				for(Listener<T> listener : toNotify)
+				{
+					listener.onFlightDone(result);
+				}
+			}
+		}
+		
+		private synchronized boolean subscribe()
+		{
+			if(finished || cancelled)
+				return false;
+			
+			subscribers++;
+			return true;
+		}
+		
+		private synchronized boolean unsubscribe()
+		{
+			subscribers--;
+			if(subscribers <= 0 && !finished && !cancelled)
+			{
+				cancelled = true;
+				done.countDown();
+				return true;
+			}
+			return false;
+		}
+		
+		private synchronized void finish(T result)
+		{
+			if(!cancelled)
+				this.result = result;
+			finished = true;
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.metrics;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codingfingers.fastimagelist.cache.AbstractCache;
+import com.codingfingers.fastimagelist.download.DownloadScheduler;
+import com.codingfingers.fastimagelist.download.InFlightRegistry;
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Counters and latency histograms of the caches and downloaders. Recording is lock-free and
+ * allocation-free, so it stays on in production; it can be switched off with
+ * {@link #setEnabled(boolean)}. Memory hits, misses and evictions are not recorded at all, they
+ * are read from the caches' own statistics when a snapshot is taken, as are queue depths and
+ * other gauges of the {@link #track tracked} components.
+ * <p>
+ * Snapshots are taken on demand with {@link #snapshot()}, or {@link #startPublishing periodically}
+ * for {@link MetricsListener listeners}.
+ */
+public class ImageMetrics {
+	
+	private static ImageMetrics defaultMetrics;
+	
+	private volatile boolean enabled = true;
+	
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong diskMisses = new AtomicLong();
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong downloadFailures = new AtomicLong();
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+	
+	private final LatencyHistogram lookupTimes = new LatencyHistogram();
+	private final LatencyHistogram diskReadTimes = new LatencyHistogram();
+	private final LatencyHistogram downloadTimes = new LatencyHistogram();
+	private final LatencyHistogram decodeTimes = new LatencyHistogram();
+	private final LatencyHistogram transformTimes = new LatencyHistogram();
+	
+	private final Set<AbstractCache<?, ?>> caches = new CopyOnWriteArraySet<AbstractCache<?, ?>>();
+	private final Set<DownloadScheduler> schedulers = new CopyOnWriteArraySet<DownloadScheduler>();
+	private final Set<InFlightRegistry<?>> registries = new CopyOnWriteArraySet<InFlightRegistry<?>>();
+	
+	private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+	
+	private ScheduledExecutorService publisher;
+	private ScheduledFuture<?> publishing;
+	
+	/**
+	 * @return metrics shared by caches and downloaders which don't set their own
+	 */
+	public static synchronized ImageMetrics getDefault()
+	{
+		if(defaultMetrics == null)
+		{
+			defaultMetrics = new ImageMetrics();
+		}
+		return defaultMetrics;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * @param enabled false to stop recording counts and latencies, gauges are still read
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Adds a cache's memory statistics, sizes and write queue to the snapshots. Components stay
+	 * tracked for the life of the metrics.
+	 */
+	public void track(AbstractCache<?, ?> cache)
+	{
+		caches.add(cache);
+	}
+	
+	/**
+	 * Adds a scheduler's queue depths to the snapshots.
+	 */
+	public void track(DownloadScheduler scheduler)
+	{
+		schedulers.add(scheduler);
+	}
+	
+	/**
+	 * Adds the fetches in progress of a registry to the snapshots.
+	 */
+	public void track(InFlightRegistry<?> registry)
+	{
+		registries.add(registry);
+	}
+	
+	/**
+	 * @return start time for one of the latency recordings, 0 if disabled
+	 */
+	public long startTimer()
+	{
+		return enabled ? System.nanoTime() : 0;
+	}
+	
+	private static void recordSince(LatencyHistogram histogram, long startNanos)
+	{
+		if(startNanos != 0)
+			histogram.record(System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * Records the latency of a cache lookup, hit or miss.
+	 * @param startNanos see {@link #startTimer()}
+	 */
+	public void recordLookup(long startNanos)
+	{
+		recordSince(lookupTimes, startNanos);
+	}
+	
+	/**
+	 * Records a value read from disk after a memory miss.
+	 * @param startNanos see {@link #startTimer()}
+	 */
+	public void recordDiskHit(long startNanos)
+	{
+		if(!enabled)
+			return;
+		diskHits.incrementAndGet();
+		recordSince(diskReadTimes, startNanos);
+	}
+	
+	public void recordDiskMiss()
+	{
+		if(enabled)
+			diskMisses.incrementAndGet();
+	}
+	
+	/**
+	 * Records a completed download.
+	 * @param startNanos see {@link #startTimer()}
+	 * @param bytes size of the image data
+	 */
+	public void recordDownload(long startNanos, long bytes)
+	{
+		if(!enabled)
+			return;
+		downloads.incrementAndGet();
+		bytesDownloaded.addAndGet(bytes);
+		recordSince(downloadTimes, startNanos);
+	}
+	
+	/**
+	 * Records a revalidated image which didn't change, and wasn't downloaded again.
+	 */
+	public void recordNotModified()
+	{
+		if(enabled)
+			notModified.incrementAndGet();
+	}
+	
+	public void recordDownloadFailure()
+	{
+		if(enabled)
+			downloadFailures.incrementAndGet();
+	}
+	
+	/**
+	 * @param startNanos see {@link #startTimer()}
+	 */
+	public void recordDecode(long startNanos)
+	{
+		recordSince(decodeTimes, startNanos);
+	}
+	
+	/**
+	 * @param startNanos see {@link #startTimer()}
+	 */
+	public void recordTransform(long startNanos)
+	{
+		recordSince(transformTimes, startNanos);
+	}
+	
+	/**
+	 * @return the current counts, gauges and latencies; takes a few microseconds
+	 */
+	public MetricsSnapshot snapshot()
+	{
+		long memoryHits = 0;
+		long memoryMisses = 0;
+		long evictions = 0;
+		int writeQueueDepth = 0;
+		long memorySize = 0;
+		long diskSize = 0;
+		for(AbstractCache<?, ?> cache : caches)
+		{
+			CacheStats stats = cache.getMemoryCacheStats();
+			memoryHits += stats.hitCount();
+			memoryMisses += stats.missCount();
+			evictions += stats.evictionCount();
+			writeQueueDepth += cache.getWriteQueueDepth();
+			memorySize += cache.getMemorySize();
+			diskSize += cache.getDiskSize();
+		}
+		
+		int networkQueueDepth = 0;
+		int decodeQueueDepth = 0;
+		for(DownloadScheduler scheduler : schedulers)
+		{
+			networkQueueDepth += scheduler.getNetworkQueueSize();
+			decodeQueueDepth += scheduler.getDecodeQueueSize();
+		}
+		
+		int inFlight = 0;
+		for(InFlightRegistry<?> registry : registries)
+			inFlight += registry.size();
+		
+		return new MetricsSnapshot(System.currentTimeMillis(), memoryHits, memoryMisses, evictions, diskHits.get(),
+				diskMisses.get(), downloads.get(), notModified.get(), downloadFailures.get(), bytesDownloaded.get(),
+				networkQueueDepth, decodeQueueDepth, inFlight, writeQueueDepth, memorySize, diskSize,
+				lookupTimes.snapshot(), diskReadTimes.snapshot(), downloadTimes.snapshot(), decodeTimes.snapshot(),
+				transformTimes.snapshot());
+	}
+	
+	public void addListener(MetricsListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public void removeListener(MetricsListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Takes a snapshot and passes it to the listeners, on the calling thread.
+	 */
+	public void publish()
+	{
+		if(listeners.isEmpty())
+			return;
+		
+		MetricsSnapshot snapshot = snapshot();
+		for(MetricsListener listener : listeners)
+			listener.onMetrics(snapshot);
+	}
+	
+	/**
+	 * Publishes a snapshot to the listeners every period, on a background thread, until
+	 * {@link #stopPublishing()}. Replaces a previous period.
+	 */
+	public synchronized void startPublishing(long period, TimeUnit unit)
+	{
+		stopPublishing();
+		if(publisher == null)
+		{
+			publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "FastImage-metrics");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		
+		publishing = publisher.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				}
+				catch (RuntimeException e) {
+					// a failing listener doesn't stop publishing
+					FastImageLog.e("FastImage-metrics", "Metrics listener failed", e);
+				}
+			}
+		}, period, period, unit);
+	}
+	
+	public synchronized void stopPublishing()
+	{
+		if(publishing != null)
+		{
+			publishing.cancel(false);
+			publishing = null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power of two buckets in microseconds: bucket 0 counts
+ * latencies under 1 &micro;s, bucket i those from 2<sup>i-1</sup> up to 2<sup>i</sup> &micro;s.
+ * Recording is a few atomic increments and never allocates; percentiles are accurate to a factor
+ * of two, which is plenty for telling a memory hit from a disk read from a download.
+ */
+public class LatencyHistogram {
+	
+	public static final int BUCKETS = 40;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	/**
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+		counts.incrementAndGet(bucketOf(micros));
+		totalMicros.addAndGet(micros);
+		
+		long max = maxMicros.get();
+		while(micros > max && !maxMicros.compareAndSet(max, micros))
+			max = maxMicros.get();
+	}
+	
+	static int bucketOf(long micros)
+	{
+		return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+	}
+	
+	/**
+	 * @return copy of the current counts; concurrent recordings may be partly included
+	 */
+	public Snapshot snapshot()
+	{
+		long[] bucketCounts = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			bucketCounts[i] = counts.get(i);
+			count += bucketCounts[i];
+		}
+		return new Snapshot(bucketCounts, count, totalMicros.get(), maxMicros.get());
+	}
+	
+	/**
+	 * Immutable counts of a {@link LatencyHistogram}.
+	 */
+	public static class Snapshot
+	{
+		private final long[] bucketCounts;
+		private final long count;
+		private final long totalMicros;
+		private final long maxMicros;
+		
+		Snapshot(long[] bucketCounts, long count, long totalMicros, long maxMicros)
+		{
+			this.bucketCounts = bucketCounts;
+			this.count = count;
+			this.totalMicros = totalMicros;
+			this.maxMicros = maxMicros;
+		}
+		
+		public long getCount()
+		{
+			return count;
+		}
+		
+		public long getTotalMicros()
+		{
+			return totalMicros;
+		}
+		
+		public long getMaxMicros()
+		{
+			return maxMicros;
+		}
+		
+		/**
+		 * @return mean latency in microseconds, 0 if nothing was recorded
+		 */
+		public long getMeanMicros()
+		{
+			return count == 0 ? 0 : totalMicros / count;
+		}
+		
+		/**
+		 * @param percentile e.g. 50 for the median, 99 for the 99th percentile
+		 * @return upper bound of the bucket holding the percentile in microseconds, never more than
+		 * the max; 0 if nothing was recorded
+		 */
+		public long getPercentileMicros(double percentile)
+		{
+			if(count == 0)
+				return 0;
+			
+			long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+			long seen = 0;
+			for(int i = 0; i < bucketCounts.length; i++)
+			{
+				seen += bucketCounts[i];
+				if(seen >= rank && seen > 0)
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, maxMicros);
+			}
+			return maxMicros;
+		}
+		
+		/**
+		 * @param bucket 0 to {@link LatencyHistogram#BUCKETS} - 1
+		 */
+		public long getBucketCount(int bucket)
+		{
+			return bucketCounts[bucket];
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "count=" + count + " mean=" + getMeanMicros() + "us p50=" + getPercentileMicros(50) + "us p99="
+					+ getPercentileMicros(99) + "us max=" + maxMicros + "us";
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.metrics;
+
+/**
+ * Receives metrics snapshots, e.g. to export them to telemetry. See
+ * {@link ImageMetrics#addListener}.
+ */
+public interface MetricsListener {
+	
+	/**
+	 * Called on the thread publishing the snapshot, should return quickly.
+	 */
+	void onMetrics(MetricsSnapshot snapshot);
+}
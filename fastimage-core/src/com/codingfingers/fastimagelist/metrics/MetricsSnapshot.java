@@ -0,0 +1,126 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.metrics;
+
+/**
+ * Immutable counts, gauges and latencies taken by {@link ImageMetrics#snapshot()}. Counts grow
+ * from the start of the process; subtract an earlier snapshot's for rates.
+ */
+public class MetricsSnapshot {
+	
+	/**
+	 * time of the snapshot, {@link System#currentTimeMillis()}
+	 */
+	public final long timestamp;
+	
+	/**
+	 * lookups in the in-memory caches, see {@link com.codingfingers.fastimagelist.cache.AbstractCache#getMemoryCacheStats()}
+	 */
+	public final long memoryHits;
+	public final long memoryMisses;
+	
+	/**
+	 * values evicted from the in-memory caches
+	 */
+	public final long evictions;
+	
+	/**
+	 * reads of the disk caches, after a memory miss
+	 */
+	public final long diskHits;
+	public final long diskMisses;
+	
+	/**
+	 * images downloaded, found unchanged when revalidated (HTTP 304), and failed downloads
+	 */
+	public final long downloads;
+	public final long notModified;
+	public final long downloadFailures;
+	
+	/**
+	 * bytes of image data received
+	 */
+	public final long bytesDownloaded;
+	
+	/**
+	 * jobs waiting in the network and decode pools of the tracked schedulers
+	 */
+	public final int networkQueueDepth;
+	public final int decodeQueueDepth;
+	
+	/**
+	 * downloads in progress, or waiting to be decoded
+	 */
+	public final int inFlight;
+	
+	/**
+	 * values waiting to be written to disk
+	 */
+	public final int writeQueueDepth;
+	
+	/**
+	 * bytes held by the in-memory caches, and by the disk caches
+	 */
+	public final long memorySize;
+	public final long diskSize;
+	
+	public final LatencyHistogram.Snapshot lookupTimes;
+	public final LatencyHistogram.Snapshot diskReadTimes;
+	public final LatencyHistogram.Snapshot downloadTimes;
+	public final LatencyHistogram.Snapshot decodeTimes;
+	public final LatencyHistogram.Snapshot transformTimes;
+	
+	MetricsSnapshot(long timestamp, long memoryHits, long memoryMisses, long evictions, long diskHits, long diskMisses,
+			long downloads, long notModified, long downloadFailures, long bytesDownloaded, int networkQueueDepth,
+			int decodeQueueDepth, int inFlight, int writeQueueDepth, long memorySize, long diskSize,
+			LatencyHistogram.Snapshot lookupTimes, LatencyHistogram.Snapshot diskReadTimes,
+			LatencyHistogram.Snapshot downloadTimes, LatencyHistogram.Snapshot decodeTimes,
+			LatencyHistogram.Snapshot transformTimes)
+	{
+		this.timestamp = timestamp;
+		this.memoryHits = memoryHits;
+		this.memoryMisses = memoryMisses;
+		this.evictions = evictions;
+		this.diskHits = diskHits;
+		this.diskMisses = diskMisses;
+		this.downloads = downloads;
+		this.notModified = notModified;
+		this.downloadFailures = downloadFailures;
+		this.bytesDownloaded = bytesDownloaded;
+		this.networkQueueDepth = networkQueueDepth;
+		this.decodeQueueDepth = decodeQueueDepth;
+		this.inFlight = inFlight;
+		this.writeQueueDepth = writeQueueDepth;
+		this.memorySize = memorySize;
+		this.diskSize = diskSize;
+		this.lookupTimes = lookupTimes;
+		this.diskReadTimes = diskReadTimes;
+		this.downloadTimes = downloadTimes;
+		this.decodeTimes = decodeTimes;
+		this.transformTimes = transformTimes;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "memory " + memoryHits + " hits / " + memoryMisses + " misses, " + evictions + " evictions; disk "
+				+ diskHits + " hits / " + diskMisses + " misses; network " + downloads + " downloads, " + notModified
+				+ " not modified, " + downloadFailures + " failed, " + bytesDownloaded + " bytes; queued "
+				+ networkQueueDepth + " network / " + decodeQueueDepth + " decode / " + writeQueueDepth
+				+ " writes, " + inFlight + " in flight; lookup " + lookupTimes + "; disk read " + diskReadTimes
+				+ "; download " + downloadTimes + "; decode " + decodeTimes + "; transform " + transformTimes;
+	}
+}
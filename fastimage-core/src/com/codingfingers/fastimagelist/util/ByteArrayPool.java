@@ -0,0 +1,137 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.util;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of byte arrays in power of two size classes, shared by all threads. Used for temporary
+ * buffers on the disk read and download paths, so loading an image doesn't allocate scratch
+ * memory. Arrays bigger than the largest size class are not pooled. The pool holds at most
+ * {@link #getMaxPooledBytes()} bytes; arrays released beyond that are left to the GC.
+ */
+public class ByteArrayPool {
+
+	private static final int MIN_SIZE_CLASS_SHIFT = 12; // 4 KB
+	private static final int MAX_SIZE_CLASS_SHIFT = 20; // 1 MB
+	
+	private static final int DEFAULT_MAX_POOLED_BYTES = 2 * 1024 * 1024;
+	
+	private static final ByteArrayPool sharedPool = new ByteArrayPool(DEFAULT_MAX_POOLED_BYTES);
+	
+	private final ArrayList<ArrayList<byte[]>> sizeClasses;
+	
+	private final int maxPooledBytes;
+	
+	private int pooledBytes;
+	
+	/**
+	 * @param maxPooledBytes the most bytes the pool keeps for reuse
+	 */
+	public ByteArrayPool(int maxPooledBytes)
+	{
+		this.maxPooledBytes = maxPooledBytes;
+		this.sizeClasses = new ArrayList<ArrayList<byte[]>>(MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1);
+		for(int shift = MIN_SIZE_CLASS_SHIFT; shift <= MAX_SIZE_CLASS_SHIFT; shift++)
+		{
+			sizeClasses.add(new ArrayList<byte[]>());
+		}
+	}
+	
+	/**
+	 * @return the pool shared by the library
+	 */
+	public static ByteArrayPool getShared()
+	{
+		return sharedPool;
+	}
+	
+	/**
+	 * Returns an array of at least the given length. Its contents are undefined. Release it with
+	 * {@link #release} once it's no longer used.
+	 * @param minLength the minimum length
+	 * @return a pooled array, or a new one
+	 */
+	public byte[] acquire(int minLength)
+	{
+		int sizeClass = sizeClassOf(minLength);
+		if(sizeClass < 0)
+			return new byte[minLength];
+		
+		synchronized (this) {
+			ArrayList<byte[]> arrays = sizeClasses.get(sizeClass);
+			if(!arrays.isEmpty())
+			{
+				byte[] array = arrays.remove(arrays.size() - 1);
+				pooledBytes -= array.length;
+				return array;
+			}
+		}
+		
+		return new byte[1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)];
+	}
+	
+	/**
+	 * Returns an array to the pool. The caller must not use it afterwards.
+	 * @param array an array returned by {@link #acquire}, may be null
+	 */
+	public void release(byte[] array)
+	{
+		if(array == null)
+			return;
+		
+		int sizeClass = sizeClassOf(array.length);
+		if(sizeClass < 0 || array.length != 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT))
+			return;
+		
+		synchronized (this) {
+			if(pooledBytes + array.length > maxPooledBytes)
+				return;
+			
+			sizeClasses.get(sizeClass).add(array);
+			pooledBytes += array.length;
+		}
+	}
+	
+	public int getMaxPooledBytes()
+	{
+		return maxPooledBytes;
+	}
+	
+	/**
+	 * @return the number of bytes currently held by the pool
+	 */
+	public synchronized int getPooledBytes()
+	{
+		return pooledBytes;
+	}
+	
+	/**
+	 * @return index of the smallest size class holding the length, or -1 if it's too big
+	 */
+	private static int sizeClassOf(int length)
+	{
+		if(length > 1 << MAX_SIZE_CLASS_SHIFT)
+			return -1;
+		
+		int shift = MIN_SIZE_CLASS_SHIFT;
+		while(1 << shift < length)
+		{
+			shift++;
+		}
+		return shift - MIN_SIZE_CLASS_SHIFT;
+	}
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.util;
+
+/**
+ * Logging of the library. Nothing is logged by default, so release builds pay no more than a
+ * level check; set a logger, e.g. the AndroidLogger of the Android library, to see the messages.
+ * <p>
+ * Callers building a message check {@link #isLoggable} first, so no string is concatenated on
+ * hot paths unless it is logged:
+ * <pre>
+ * if (FastImageLog.isLoggable(ImageLogger.DEBUG))
+ *     FastImageLog.d(TAG, "fetching " + url);
+ * </pre>
+ */
+public final class FastImageLog {
+	
+	/**
+	 * logs nothing
+	 */
+	public static final ImageLogger NONE = new ImageLogger() {
+		@Override
+		public boolean isLoggable(int level) {
+			return false;
+		}
+		
+		@Override
+		public void log(int level, String tag, String message, Throwable error) {
+		}
+	};
+	
+	private static volatile ImageLogger logger = NONE;
+	
+	private FastImageLog()
+	{
+	}
+	
+	public static ImageLogger getLogger() {
+		return logger;
+	}
+	
+	/**
+	 * @param logger where to log, null for {@link #NONE}
+	 */
+	public static void setLogger(ImageLogger logger) {
+		FastImageLog.logger = logger != null ? logger : NONE;
+	}
+	
+	public static boolean isLoggable(int level)
+	{
+		return logger.isLoggable(level);
+	}
+	
+	public static void d(String tag, String message)
+	{
+		log(ImageLogger.DEBUG, tag, message, null);
+	}
+	
+	public static void w(String tag, String message)
+	{
+		log(ImageLogger.WARN, tag, message, null);
+	}
+	
+	public static void w(String tag, String message, Throwable error)
+	{
+		log(ImageLogger.WARN, tag, message, error);
+	}
+	
+	public static void e(String tag, String message, Throwable error)
+	{
+		log(ImageLogger.ERROR, tag, message, error);
+	}
+	
+	private static void log(int level, String tag, String message, Throwable error)
+	{
+		ImageLogger logger = FastImageLog.logger;
+		if(logger.isLoggable(level))
+			logger.log(level, tag, message, error);
+	}
+}
@@ -0,0 +1,40 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.util;
+
+/**
+ * Destination of the library's log messages, see {@link FastImageLog#setLogger}. Levels have
+ * the values of the android.util.Log priorities.
+ */
+public interface ImageLogger {
+	
+	int VERBOSE = 2;
+	int DEBUG = 3;
+	int INFO = 4;
+	int WARN = 5;
+	int ERROR = 6;
+	
+	/**
+	 * Checked before a message is built, should be cheap.
+	 * @return true if messages of the level are logged
+	 */
+	boolean isLoggable(int level);
+	
+	/**
+	 * @param error exception to log with the message, or null
+	 */
+	void log(int level, String tag, String message, Throwable error);
+}
@@ -0,0 +1,100 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An input stream copying everything read from it, or skipped, to an output stream. Used to
+ * write a download to the disk cache while it is decoded. Marks are not supported, as bytes read
+ * again would be copied twice; buffer on top of it if needed.
+ */
+public class TeeInputStream extends FilterInputStream {
+	
+	private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+	
+	private final OutputStream copy;
+	
+	public TeeInputStream(InputStream in, OutputStream copy)
+	{
+		super(in);
+		this.copy = copy;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if(b != -1)
+			copy.write(b);
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int bytesRead = in.read(buffer, offset, count);
+		if(bytesRead > 0)
+			copy.write(buffer, offset, bytesRead);
+		return bytesRead;
+	}
+	
+	/**
+	 * Reads the skipped bytes, so they are copied too.
+	 */
+	@Override
+	public long skip(long count) throws IOException {
+		if(count <= 0)
+			return 0;
+		
+		byte[] buffer = ByteArrayPool.getShared().acquire((int) Math.min(count, DRAIN_BUFFER_SIZE));
+		try {
+			int bytesRead = read(buffer, 0, (int) Math.min(count, buffer.length));
+			return bytesRead == -1 ? 0 : bytesRead;
+		} finally {
+			ByteArrayPool.getShared().release(buffer);
+		}
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+	
+	/**
+	 * Reads the rest of the stream, copying it.
+	 */
+	public void drain() throws IOException {
+		byte[] buffer = ByteArrayPool.getShared().acquire(DRAIN_BUFFER_SIZE);
+		try {
+			while(read(buffer, 0, buffer.length) != -1)
+			{
+			}
+		} finally {
+			ByteArrayPool.getShared().release(buffer);
+		}
+	}
+}
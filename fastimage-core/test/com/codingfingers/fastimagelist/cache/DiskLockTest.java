@@ -0,0 +1,235 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Disk access of {@link AbstractCache} from several threads: writes and reads of one key are
+ * serialized by its disk lock, while other keys keep going.
+ */
+public class DiskLockTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final byte[] BLOCKING = "blocking".getBytes();
+
+    private static final byte[] V1 = "first version".getBytes();
+
+    private static final byte[] V2 = "second version".getBytes();
+
+    private File directory;
+
+    private BlockingCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("fastimage-disklock", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        cache = new BlockingCache();
+        cache.setDiskCacheEnabled(directory.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        cache.unblock();
+        cache.clear(true);
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void writesOfOneKeyAreSerialized() throws Exception {
+        Thread first = put("a", BLOCKING);
+        cache.awaitBlocked();
+
+        Thread second = put("a", V2);
+        second.join(200);
+        // waiting for the disk lock, not writing
+        assertTrue(second.isAlive());
+        assertEquals(1, cache.writing.get());
+
+        cache.unblock();
+        join(first);
+        join(second);
+        assertFalse(cache.overlapped);
+        assertArrayEquals(V2, cache.get("a"));
+        assertArrayEquals(V2, readFromDisk("a"));
+    }
+
+    @Test
+    public void readOfKeyWaitsForItsWrite() throws Exception {
+        cache.put("a", V1);
+        cache.removeKey("a");
+
+        Thread writer = put("a", BLOCKING);
+        cache.awaitBlocked();
+
+        final byte[][] read = new byte[1][];
+        Thread reader = start(new Runnable() {
+            @Override
+            public void run() {
+                read[0] = cache.get("a");
+            }
+        });
+        reader.join(200);
+        assertTrue(reader.isAlive());
+
+        cache.unblock();
+        join(writer);
+        join(reader);
+        // read once the write is done, from memory
+        assertArrayEquals(BLOCKING, read[0]);
+    }
+
+    @Test
+    public void otherKeysProgressWhileOneIsWritten() throws Exception {
+        String other = keyWithOtherLockThan("a");
+        cache.put(other, V1);
+        cache.removeKey(other);
+
+        Thread writer = put("a", BLOCKING);
+        cache.awaitBlocked();
+
+        join(put(other + "-new", V2));
+        // read from disk, not memory
+        assertArrayEquals(V1, cache.get(other));
+        assertTrue(writer.isAlive());
+
+        cache.unblock();
+        join(writer);
+    }
+
+    @Test
+    public void diskLookupsDontTakeTheCacheMonitor() throws Exception {
+        cache.put("a", V1);
+        cache.removeKey("a");
+
+        final byte[][] read = new byte[1][];
+        synchronized (cache) {
+            join(start(new Runnable() {
+                @Override
+                public void run() {
+                    read[0] = cache.get("a");
+                }
+            }));
+        }
+        assertArrayEquals(V1, read[0]);
+    }
+
+    private Thread put(final String key, final byte[] value) {
+        return start(new Runnable() {
+            @Override
+            public void run() {
+                cache.put(key, value);
+            }
+        });
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        // don't keep the test run alive if it stays blocked
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private String keyWithOtherLockThan(String key) {
+        for (int i = 0;; i++) {
+            String other = "b" + i;
+            if (cache.getDiskLock(other) != cache.getDiskLock(key)
+                    && cache.getDiskLock(other + "-new") != cache.getDiskLock(key)) {
+                return other;
+            }
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        cache.removeKey(key);
+        return cache.get(key);
+    }
+
+    private static void join(Thread thread) throws InterruptedException {
+        thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse("thread still blocked", thread.isAlive());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Blocks writing {@link #BLOCKING} until unblocked, and tells if writes ever overlapped.
+     */
+    private static class BlockingCache extends ImageBytesCache {
+
+        final AtomicInteger writing = new AtomicInteger();
+
+        volatile boolean overlapped;
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        private final CountDownLatch unblocked = new CountDownLatch(1);
+
+        BlockingCache() {
+            super("DiskLockTest", 16, 0, 60, 16);
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        void unblock() {
+            unblocked.countDown();
+        }
+
+        @Override
+        protected void writeValueToDisk(File file, byte[] value) throws IOException {
+            if (writing.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            try {
+                if (value == BLOCKING) {
+                    blocked.countDown();
+                    unblocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+                super.writeValueToDisk(file, value);
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            } finally {
+                writing.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskLruCacheTest {
+
+    private static final long MAX_AGE_MILLIS = 50;
+
+    private File directory;
+
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("fastimage-disklru", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        cache = DiskLruCache.open(directory, 1024 * 1024, MAX_AGE_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        cache.removeAll();
+        cache.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void expiredEntryBeingRewrittenKeepsItsSize() throws Exception {
+        write(cache.edit("key"), 10);
+        assertEquals(10, cache.size());
+
+        DiskLruCache.Editor editor = cache.edit("key");
+        Thread.sleep(MAX_AGE_MILLIS * 2);
+        // expired, but left for the edit to replace
+        assertNull(cache.get("key"));
+        assertEquals(10, cache.size());
+
+        write(editor, 20);
+        assertEquals(20, cache.size());
+        assertNotNull(cache.get("key"));
+    }
+
+    @Test
+    public void expiredEntryIsRemovedOnRead() throws Exception {
+        write(cache.edit("key"), 10);
+        Thread.sleep(MAX_AGE_MILLIS * 2);
+
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.size());
+        assertTrue(cache.getKeys().isEmpty());
+    }
+
+    private static void write(DiskLruCache.Editor editor, int length) throws IOException {
+        FileOutputStream output = new FileOutputStream(editor.getFile());
+        try {
+            output.write(new byte[length]);
+        } finally {
+            output.close();
+        }
+        editor.commit();
+    }
+}
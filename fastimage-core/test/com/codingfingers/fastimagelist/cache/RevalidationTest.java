@@ -0,0 +1,270 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codingfingers.fastimagelist.download.HttpUrlConnectionTransport;
+import com.codingfingers.fastimagelist.download.ImageFetcher;
+import com.codingfingers.fastimagelist.download.ImageTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Revalidation of stale images against an in-process server: what the downloader does for each
+ * image, on a cache of image bytes, its disk cache and the HTTP transport.
+ */
+public class RevalidationTest {
+
+    private static final byte[] V1 = "first version".getBytes();
+
+    private static final byte[] V2 = "second version".getBytes();
+
+    private HttpServer server;
+
+    private ImageServer images;
+
+    private File directory;
+
+    private ImageBytesCache cache;
+
+    private ImageTransport transport;
+
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        images = new ImageServer();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", images);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/image.jpg";
+
+        directory = File.createTempFile("fastimage-revalidation", "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        cache = new ImageBytesCache("RevalidationTest", 16, 1024 * 1024, 60, 2);
+        cache.setDiskCacheEnabled(directory.getPath());
+
+        transport = new HttpUrlConnectionTransport(false, 0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        cache.clear(true);
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void notModifiedMakesStaleImageFresh() throws IOException {
+        images.serve(V1, "\"v1\"", "max-age=0");
+        assertArrayEquals(V1, fetch());
+        assertTrue(cache.isStale(url));
+        assertEquals("\"v1\"", cache.getStaleValidators(url).getEtag());
+
+        images.cacheControl = "max-age=3600";
+        assertArrayEquals(V1, fetch());
+        assertEquals("\"v1\"", images.ifNoneMatch);
+        assertEquals(1, images.notModified.get());
+        assertFalse(cache.isStale(url));
+        assertArrayEquals(V1, readFromDisk());
+
+        // fresh again, served without a request
+        assertArrayEquals(V1, fetch());
+        assertEquals(2, images.requests.get());
+    }
+
+    @Test
+    public void changedImageReplacesStaleImage() throws IOException {
+        images.serve(V1, "\"v1\"", "max-age=0");
+        assertArrayEquals(V1, fetch());
+
+        images.serve(V2, "\"v2\"", "max-age=3600");
+        assertArrayEquals(V2, fetch());
+        assertEquals("\"v1\"", images.ifNoneMatch);
+        assertEquals(0, images.notModified.get());
+        assertFalse(cache.isStale(url));
+        assertArrayEquals(V2, readFromDisk());
+
+        // stale again, it is revalidated with the validators of the new image
+        cache.revalidate(url, new CacheValidators("\"v2\"", null, System.currentTimeMillis()));
+        assertArrayEquals(V2, fetch());
+        assertEquals("\"v2\"", images.ifNoneMatch);
+        assertEquals(1, images.notModified.get());
+    }
+
+    @Test
+    public void maxAgeOnlyImageIsDownloadedAgainOnceExpired() throws Exception {
+        images.serve(V1, null, "max-age=1");
+        assertArrayEquals(V1, fetch());
+        assertArrayEquals(V1, fetch());
+        assertEquals(1, images.requests.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cache.isStale(url)) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("still fresh past its max-age");
+            }
+            Thread.sleep(50);
+        }
+        // nothing to revalidate with
+        assertNull(cache.getStaleValidators(url));
+
+        images.serve(V2, null, "max-age=3600");
+        assertArrayEquals(V2, fetch());
+        assertNull(images.ifNoneMatch);
+        assertEquals(2, images.requests.get());
+        assertFalse(cache.isStale(url));
+        assertArrayEquals(V2, readFromDisk());
+    }
+
+    @Test
+    public void failedDownloadKeepsStaleImage() throws IOException {
+        images.serve(V1, "\"v1\"", "max-age=0");
+        assertArrayEquals(V1, fetch());
+
+        images.status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+        try {
+            fetch();
+            fail("server error not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        // still there to be revalidated
+        assertEquals("\"v1\"", cache.getStaleValidators(url).getEtag());
+
+        images.status = HttpURLConnection.HTTP_OK;
+        assertArrayEquals(V1, fetch());
+        assertEquals(1, images.notModified.get());
+    }
+
+    /**
+     * Gets the image the way the downloader does: from the cache while fresh, otherwise with a
+     * conditional request if it can be revalidated, and a plain one if not.
+     */
+    private byte[] fetch() throws IOException {
+        if (!cache.isStale(url)) {
+            byte[] cached = cache.get(url);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        CacheValidators stale = cache.getStaleValidators(url);
+        ImageTransport.Response response = transport.open(url, ImageFetcher.getConditionalHeaders(stale));
+        try {
+            if (stale != null && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                assertTrue(cache.revalidate(url,
+                        stale.revalidated(ImageFetcher.readValidators(response), System.currentTimeMillis())));
+                return cache.get(url);
+            }
+
+            byte[] body = ImageFetcher.readBody(response, null, null);
+            cache.put(url, body, ImageFetcher.readValidators(response));
+            return body;
+        } finally {
+            response.close();
+        }
+    }
+
+    private byte[] readFromDisk() {
+        cache.removeKey(url);
+        return cache.get(url);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Serves one image, answering conditional requests matching its ETag with 304 Not Modified.
+     */
+    private static class ImageServer implements HttpHandler {
+
+        volatile byte[] body;
+
+        volatile String etag;
+
+        volatile String cacheControl;
+
+        volatile int status = HttpURLConnection.HTTP_OK;
+
+        /**
+         * If-None-Match of the last request, or null
+         */
+        volatile String ifNoneMatch;
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        final AtomicInteger notModified = new AtomicInteger();
+
+        void serve(byte[] body, String etag, String cacheControl) {
+            this.body = body;
+            this.etag = etag;
+            this.cacheControl = cacheControl;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            try {
+                if (etag != null) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                }
+                exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+
+                if (status != HttpURLConnection.HTTP_OK) {
+                    exchange.sendResponseHeaders(status, -1);
+                } else if (etag != null && etag.equals(ifNoneMatch)) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                } else {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+                    OutputStream output = exchange.getResponseBody();
+                    output.write(body);
+                    output.close();
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
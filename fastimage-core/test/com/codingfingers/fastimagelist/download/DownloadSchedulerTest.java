@@ -0,0 +1,208 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DownloadSchedulerTest {
+
+	private static final long TIMEOUT_SECONDS = 5;
+	
+	private DownloadScheduler scheduler;
+	
+	private final List<String> started = new ArrayList<String>();
+	
+	private final CountDownLatch unblocked = new CountDownLatch(1);
+	
+	private int runningBackground;
+	
+	private int maxRunningBackground;
+	
+	@After
+	public void tearDown()
+	{
+		unblocked.countDown();
+		if(scheduler != null)
+			scheduler.shutdown();
+	}
+	
+	@Test
+	public void higherPriorityFirstThenNewestFirst() throws Exception
+	{
+		scheduler = new DownloadScheduler(1, 1);
+		Semaphore running = new Semaphore(0);
+		scheduler.executeNetwork(new BlockingJob("busy", DownloadScheduler.PRIORITY_VISIBLE, running));
+		assertTrue(running.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		
+		// queued while the only thread is busy
+		scheduler.executeNetwork(new RecordingJob("prefetch 1", DownloadScheduler.PRIORITY_PREFETCH));
+		scheduler.executeNetwork(new RecordingJob("visible 1", DownloadScheduler.PRIORITY_VISIBLE));
+		scheduler.executeNetwork(new RecordingJob("visible 2", DownloadScheduler.PRIORITY_VISIBLE));
+		scheduler.executeNetwork(new RecordingJob("prefetch 2", DownloadScheduler.PRIORITY_PREFETCH));
+		assertEquals(4, scheduler.getNetworkQueueSize());
+		
+		unblocked.countDown();
+		awaitStarted(5);
+		assertEquals(Arrays.asList("busy", "visible 2", "visible 1", "prefetch 2", "prefetch 1"), startedJobs());
+	}
+	
+	@Test
+	public void backgroundJobsLeaveOneThreadForVisibleJobs() throws Exception
+	{
+		scheduler = new DownloadScheduler(1, 3);
+		Semaphore running = new Semaphore(0);
+		for(int i = 0; i < 4; i++)
+		{
+			scheduler.executeDecode(new BlockingJob("prefetch " + i, DownloadScheduler.PRIORITY_PREFETCH, running));
+		}
+		
+		// two of three threads, the others wait
+		assertTrue(running.tryAcquire(2, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertFalse(running.tryAcquire(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, scheduler.getDecodeQueueSize());
+		
+		// the last thread is still free for visible work
+		RecordingJob visible = new RecordingJob("visible", DownloadScheduler.PRIORITY_VISIBLE);
+		scheduler.executeDecode(visible);
+		assertTrue(visible.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals(2, scheduler.getDecodeQueueSize());
+		
+		unblocked.countDown();
+		assertTrue(running.tryAcquire(2, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals(2, maxRunningBackground());
+	}
+	
+	@Test
+	public void staleJobIsDropped() throws Exception
+	{
+		scheduler = new DownloadScheduler(1, 1);
+		final CountDownLatch dropped = new CountDownLatch(1);
+		scheduler.executeDecode(new RecordingJob("stale", DownloadScheduler.PRIORITY_VISIBLE) {
+			@Override
+			protected boolean isStale() {
+				return true;
+			}
+			
+			@Override
+			protected void onDropped() {
+				dropped.countDown();
+			}
+		});
+		
+		assertTrue(dropped.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(startedJobs().isEmpty());
+	}
+	
+	private void awaitStarted(int count) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+		synchronized (started) {
+			while(started.size() < count && System.currentTimeMillis() < deadline)
+			{
+				started.wait(100);
+			}
+		}
+	}
+	
+	private synchronized void backgroundStarted()
+	{
+		runningBackground++;
+		maxRunningBackground = Math.max(maxRunningBackground, runningBackground);
+	}
+	
+	private synchronized void backgroundFinished()
+	{
+		runningBackground--;
+	}
+	
+	private synchronized int maxRunningBackground()
+	{
+		return maxRunningBackground;
+	}
+	
+	private List<String> startedJobs()
+	{
+		synchronized (started) {
+			return new ArrayList<String>(started);
+		}
+	}
+	
+	private class RecordingJob extends DownloadScheduler.Job
+	{
+		final String name;
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		RecordingJob(String name, int priority)
+		{
+			super(priority);
+			this.name = name;
+		}
+		
+		@Override
+		protected void execute()
+		{
+			synchronized (started) {
+				started.add(name);
+				started.notifyAll();
+			}
+			done.countDown();
+		}
+	}
+	
+	/**
+	 * Runs until the test unblocks it, counting the background jobs running at once.
+	 */
+	private class BlockingJob extends RecordingJob
+	{
+		private final Semaphore running;
+		
+		BlockingJob(String name, int priority, Semaphore running)
+		{
+			super(name, priority);
+			this.running = running;
+		}
+		
+		@Override
+		protected void execute()
+		{
+			super.execute();
+			boolean background = getPriority() < DownloadScheduler.PRIORITY_VISIBLE;
+			if(background)
+				backgroundStarted();
+			running.release();
+			try {
+				unblocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if(background)
+					backgroundFinished();
+			}
+		}
+	}
+}
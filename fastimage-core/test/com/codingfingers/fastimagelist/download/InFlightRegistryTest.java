@@ -0,0 +1,164 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.codingfingers.fastimagelist.download.InFlightRegistry.Flight;
+
+public class InFlightRegistryTest {
+
+	private static final String URL = "http://example.com/image.jpg";
+	
+	private final InFlightRegistry<String> registry = new InFlightRegistry<String>();
+	
+	@Test
+	public void concurrentRequestsShareOneFetch() throws Exception
+	{
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch joined = new CountDownLatch(threads);
+		final AtomicInteger fetches = new AtomicInteger();
+		final List<String> results = new ArrayList<String>();
+		
+		List<Thread> requests = new ArrayList<Thread>();
+		for(int i = 0; i < threads; i++)
+		{
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						Flight<String> flight = registry.join(URL);
+						joined.countDown();
+						String result;
+						if(flight.claim())
+						{
+							fetches.incrementAndGet();
+							// let all the others attach before the result is published
+							joined.await(5, TimeUnit.SECONDS);
+							result = "image";
+							registry.complete(flight, result);
+						}
+						else
+						{
+							result = flight.await();
+						}
+						synchronized (results) {
+							results.add(result);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			thread.start();
+			requests.add(thread);
+		}
+		
+		start.countDown();
+		for(Thread thread : requests)
+		{
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+			assertFalse(thread.isAlive());
+		}
+		
+		assertEquals(1, fetches.get());
+		assertEquals(threads, results.size());
+		for(String result : results)
+		{
+			assertEquals("image", result);
+		}
+		assertEquals(0, registry.size());
+	}
+	
+	@Test
+	public void requestAfterCompletionStartsNewFetch()
+	{
+		Flight<String> first = registry.join(URL);
+		assertTrue(first.claim());
+		registry.complete(first, "image");
+		
+		Flight<String> second = registry.join(URL);
+		assertNotSame(first, second);
+		assertTrue(second.claim());
+	}
+	
+	@Test
+	public void cancelledWhenLastSubscriberLeaves() throws Exception
+	{
+		Flight<String> flight = registry.join(URL);
+		assertTrue(flight.claim());
+		assertSame(flight, registry.join(URL));
+		
+		final List<String> notified = new ArrayList<String>();
+		flight.addListener(new InFlightRegistry.Listener<String>() {
+			@Override
+			public void onFlightDone(String result) {
+				notified.add(result);
+			}
+		});
+		
+		registry.leave(flight);
+		assertFalse(flight.isCancelled());
+		assertTrue(notified.isEmpty());
+		
+		registry.leave(flight);
+		assertTrue(flight.isCancelled());
+		assertEquals(1, notified.size());
+		assertNull(notified.get(0));
+		assertNull(flight.await());
+		assertEquals(0, registry.size());
+		
+		// a result completed after cancelling is not published
+		registry.complete(flight, "image");
+		assertNull(flight.await());
+		assertEquals(1, notified.size());
+		
+		assertNotSame(flight, registry.join(URL));
+	}
+	
+	@Test
+	public void listenerOfDoneFlightIsCalledRightAway()
+	{
+		Flight<String> flight = registry.join(URL);
+		flight.claim();
+		registry.complete(flight, "image");
+		
+		final List<String> notified = new ArrayList<String>();
+		flight.addListener(new InFlightRegistry.Listener<String>() {
+			@Override
+			public void onFlightDone(String result) {
+				notified.add(result);
+			}
+		});
+		assertEquals(1, notified.size());
+		assertEquals("image", notified.get(0));
+	}
+}
@@ -17,27 +17,44 @@
 package com.codingfingers.fastimagelist;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.codingfingers.fastimagelist.bitmap.BitmapDecoder;
+import com.codingfingers.fastimagelist.cache.CacheValidators;
 import com.codingfingers.fastimagelist.cache.FastImageCache;
+import com.codingfingers.fastimagelist.download.DownloadScheduler;
+import com.codingfingers.fastimagelist.download.HttpUrlConnectionTransport;
+import com.codingfingers.fastimagelist.download.ImageFetcher;
+import com.codingfingers.fastimagelist.download.ImageTransport;
+import com.codingfingers.fastimagelist.download.InFlightRegistry;
+import com.codingfingers.fastimagelist.download.InFlightRegistry.Flight;
+import com.codingfingers.fastimagelist.download.InFlightRegistry.Listener;
+import com.codingfingers.fastimagelist.metrics.ImageMetrics;
+import com.codingfingers.fastimagelist.transform.Transformation;
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.codingfingers.fastimagelist.util.ImageLogger;
 import com.google.common.cache.Cache;
 
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.AsyncTask;
-import android.os.Build;
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
@@ -74,9 +91,88 @@ public class FastImageDownloader<V extends View> {
 	 */
 	public static final int IMAGE_STATUS_ERROR = 4;
 	
+	/**
+	 * a low resolution preview was set, the image follows. fired after view update,
+	 * see {@link #setProgressivePreviews(boolean)}
+	 */
+	public static final int IMAGE_STATUS_PREVIEW = 5;
+	
+	/**
+	 * previews are about this many times smaller than the requested size
+	 */
+	private static final int PREVIEW_SCALE = 8;
+	private static final int MIN_PREVIEW_SIZE = 16;
+	private static final int DEFAULT_PREVIEW_SIZE = 64;
+	
 	
 	private int viewTag = -1;
 	
+	/**
+	 * downloads in progress, shared by all downloader instances as they share the cache
+	 */
+	private static final InFlightRegistry<Bitmap> inFlightDownloads = new InFlightRegistry<Bitmap>();
+	
+	/**
+	 * queued background downloads by url, promoted when a visible view starts waiting for them
+	 */
+	private static final ConcurrentMap<String, FastImageDownloader<?>.FetchJob> backgroundFetches =
+			new ConcurrentHashMap<String, FastImageDownloader<?>.FetchJob>();
+		
+	private static final String TAG = "DownloadImageTask";
+	
+	/**
+	 * runs lookups, downloads and decoding
+	 */
+	private DownloadScheduler scheduler = DownloadScheduler.getDefault();
+	
+	/**
+	 * transfers images, keeping connections alive between them
+	 */
+	private ImageTransport transport = HttpUrlConnectionTransport.getDefault();
+	
+	/**
+	 * records downloads, see {@link #getMetrics()}
+	 */
+	private ImageMetrics metrics = ImageMetrics.getDefault();
+	
+	/**
+	 * delivers results to views
+	 */
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	
+	/**
+	 * prefetches in progress by url, null until the prefetch subscribes to the download
+	 */
+	private final Map<String, Flight<Bitmap>> prefetches = new HashMap<String, Flight<Bitmap>>();
+	
+	/**
+	 * If true, prefetched images are decoded into the in-memory cache, otherwise they are only
+	 * stored on disk.
+	 */
+	private volatile boolean prefetchIntoMemory = false;
+	
+	/**
+	 * requests for views, and those of them served from cache without a download
+	 */
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger cacheReadyCount = new AtomicInteger();
+	
+	/**
+	 * applied to images before they are cached and shown, or null
+	 */
+	private volatile Transformation transformation;
+	
+	/**
+	 * If true, downloads are written to the disk cache and decoded as they arrive, see
+	 * {@link #setStreamingDownloads(boolean)}
+	 */
+	private volatile boolean streamingDownloads = false;
+	
+	/**
+	 * If true, views get a low resolution preview first, see {@link #setProgressivePreviews(boolean)}
+	 */
+	private volatile boolean progressivePreviews = false;
+	
 	
 	/**
 	 * cache to handle saving to disk, and in-memory cache
@@ -107,8 +203,6 @@ public class FastImageDownloader<V extends View> {
 	
 	public interface IDownloadImageListener<V>
 	{
-		byte[] processBytesAfterDownload(byte[] source);
-
 		void processViewOnProgress(V imageView, Integer bytesRead,
 				Integer bytesTotalOrMinusOne);
 	}
@@ -122,7 +216,7 @@ public class FastImageDownloader<V extends View> {
 	{
 		this.imageCache = FastImageCache.getInstance(ctx);
 		this.setViewTag(viewTag);
-		FastImageCache.setInMemoryCount(90);
+		trackMetrics();
 		
 	    connectivityService = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);		
 	}
@@ -194,16 +288,6 @@ public class FastImageDownloader<V extends View> {
 		return;
 	}
 	
-	protected byte[] processBytesAfterDownload(byte[] source)
-	{
-		if(downloadListener!=null)
-		{
-			return downloadListener.processBytesAfterDownload(source);
-		}
-		
-		return source;
-	}
-	
 	protected void processViewOnStatusUpdate(V view, String url, int position, int status)
 	{
 		if(statusUpdateListener!=null)
@@ -228,8 +312,24 @@ public class FastImageDownloader<V extends View> {
 	}
 	
 	
-	@SuppressLint("NewApi")
 	public boolean downloadImage(V view, String url, int position)
+	{
+		return downloadImage(view, url, position, 0, 0);
+	}
+	
+	/**
+	 * Shows the image in the view, downloading it if it's not cached. The image is decoded
+	 * downsampled to the requested size (by a power of two, so it stays at least that big),
+	 * which is much faster and takes less memory than decoding the full image.
+	 * <p>
+	 * Called from getView() for every bound row: a view bound again to the image it shows is not
+	 * looked up at all, and a memory hit builds no keys nor log messages. The memory cache still
+	 * allocates a small node per hit to track the LRU order.
+	 * @param reqWidth requested width in pixels, 0 for the full image
+	 * @param reqHeight requested height in pixels, 0 for the full image
+	 * @return true if the image was cached and is already set
+	 */
+	public boolean downloadImage(V view, String url, int position, int reqWidth, int reqHeight)
 	{
 		
 		if(url == null || url.length() == 0)
@@ -245,7 +345,18 @@ public class FastImageDownloader<V extends View> {
 		if(vh!=null)
 		{
 			boolean urlEquals = vh.url.equals(url);
-			if(!urlEquals && vh.status == IMAGE_STATUS_DOWNLOADING)
+			if(urlEquals && vh.status == IMAGE_STATUS_DOWNLOADED && vh.shownBitmap != null && vh.reqWidth == reqWidth
+					&& vh.reqHeight == reqHeight && vh.transformation == transformation)
+			{
+				// bound again to the image it shows, e.g. after notifyDataSetChanged()
+				vh.position = position;
+				requestCount.incrementAndGet();
+				cacheReadyCount.incrementAndGet();
+				processViewOnStatusUpdate(view, url, position, IMAGE_STATUS_DOWNLOADED);
+				return true;
+			}
+			
+			if(!urlEquals && (vh.status == IMAGE_STATUS_DOWNLOADING || vh.status == IMAGE_STATUS_PREVIEW))
 			{
 				this.cancelDownload(vh);
 			}
@@ -255,7 +366,7 @@ public class FastImageDownloader<V extends View> {
 				this.cancelDownload(vh);
 			}
 			else
-			if(urlEquals && vh.status == IMAGE_STATUS_DOWNLOADING || vh.status == IMAGE_STATUS_NEW_IN_QUEUE)
+			if(urlEquals && (vh.status == IMAGE_STATUS_DOWNLOADING || vh.status == IMAGE_STATUS_PREVIEW) || vh.status == IMAGE_STATUS_NEW_IN_QUEUE)
 			{
 				//do nothing
 				return false;
@@ -271,46 +382,66 @@ public class FastImageDownloader<V extends View> {
 		vh.position = position;
 		vh.imageView = view;
 		vh.url = url;
+		vh.reqWidth = reqWidth;
+		vh.reqHeight = reqHeight;
+		vh.transformation = transformation;
 		vh.downloadTask = null;
 		
+		requestCount.incrementAndGet();
+		
 		if(runLoadingImageFromDiskCacheAsync == false)
 		{
-			Bitmap cachedImage =  imageCache.getBitmap(url);
+			// retained by the lookup, so it can't be pooled before it's shown
+			Bitmap cachedImage = vh.transformation == null && !imageCache.isDiskCacheOpening()
+					? imageCache.getBitmapAndRetain(url, reqWidth, reqHeight, null)
+					// transformations only run in the background, and so does the first disk
+					// lookup, which waits for the journal to be replayed
+					: imageCache.getBitmapFromMemoryAndRetain(url, reqWidth, reqHeight, vh.transformation);
 
-			if(cachedImage!=null) 
+			if(cachedImage!=null)
 			{
-				processViewOnImageAvailable(cachedImage, view);
+				cacheReadyCount.incrementAndGet();
+				showBitmap(vh, cachedImage);
 				vh.status = IMAGE_STATUS_DOWNLOADED;
 				processViewOnStatusUpdate(view, url, position, IMAGE_STATUS_DOWNLOADED);
 				return true;
 			}
 		}
 	
-		try
-		{
-			CachedDownloadImageTask task = new CachedDownloadImageTask(vh, imageCache);	
-			vh.downloadTask = task;
-			vh.status = IMAGE_STATUS_NEW_IN_QUEUE;
-			processViewOnStatusUpdate(view, url, position, IMAGE_STATUS_NEW_IN_QUEUE);
-			
-			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-				task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, url);
-			} else {
-				task.execute(url);
-			}
-
-		}
-		catch (RejectedExecutionException e) {
-			
-		}
+		CachedDownloadImageTask task = new CachedDownloadImageTask(vh);	
+		vh.downloadTask = task;
+		vh.status = IMAGE_STATUS_NEW_IN_QUEUE;
+		processViewOnStatusUpdate(view, url, position, IMAGE_STATUS_NEW_IN_QUEUE);
+		
+		task.start();
 		
 		return false;
 	}
 	
+	/**
+	 * Sets the image of the view, and only then releases the one it showed, so it is never pooled
+	 * while still drawn. A view bound to another url keeps its previous image retained until it is
+	 * given the new one, whatever the status listeners show meanwhile.
+	 * @param bitmap bitmap {@link FastImageCache#retainBitmap retained} for the view
+	 */
+	private void showBitmap(ViewHolder<V> vh, Bitmap bitmap)
+	{
+		if(bitmap != null)
+			processViewOnImageAvailable(bitmap, vh.imageView);
+		
+		Bitmap previous = vh.shownBitmap;
+		vh.shownBitmap = bitmap;
+		imageCache.releaseBitmap(previous);
+	}
+	
 	private void cancelDownload(ViewHolder<V> vh) {
 		
 		if(vh.downloadTask!=null)
-			vh.downloadTask.cancel(true);
+		{
+			// other views may wait for the same download;
+			// it is aborted when its last subscriber leaves
+			vh.downloadTask.cancel();
+		}
 	}
 	
 	public String getCacheFilePath(String imageUrl)
@@ -325,86 +456,535 @@ public class FastImageDownloader<V extends View> {
 	public void setViewTag(int viewTag) {
 		this.viewTag = viewTag;
 	}
+	
+	public DownloadScheduler getScheduler() {
+		return scheduler;
+	}
 
+	/**
+	 * Sets the scheduler running this downloader's work, by default {@link DownloadScheduler#getDefault()}
+	 * @param scheduler
+	 */
+	public void setScheduler(DownloadScheduler scheduler) {
+		this.scheduler = scheduler;
+		metrics.track(scheduler);
+	}
+	
+	public ImageMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets where downloads are recorded, along with the queues and the cache of this downloader,
+	 * by default {@link ImageMetrics#getDefault()}. The cache records its lookups in
+	 * {@link FastImageCache#getMetrics() its own}.
+	 * @param metrics
+	 */
+	public void setMetrics(ImageMetrics metrics) {
+		this.metrics = metrics;
+		trackMetrics();
+	}
+	
+	private void trackMetrics() {
+		metrics.track(imageCache);
+		metrics.track(scheduler);
+		metrics.track(inFlightDownloads);
+	}
+	
+	public ImageTransport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * Sets the transport downloading this downloader's images, by default {@link HttpUrlConnectionTransport#getDefault()}
+	 * @param transport
+	 */
+	public void setTransport(ImageTransport transport) {
+		this.transport = transport;
+	}
+
+	public Transformation getTransformation() {
+		return transformation;
+	}
+	
+	/**
+	 * Sets the transformation applied to downloaded images, on the decode pool, before they are
+	 * shown. Transformed images are cached, so it runs once per image and size; see
+	 * {@link com.codingfingers.fastimagelist.transform.TransformationChain} to apply several.
+	 * @param transformation transformation to apply, or null to show images as decoded
+	 */
+	public void setTransformation(Transformation transformation) {
+		this.transformation = transformation;
+	}
+	
+	public boolean isStreamingDownloads() {
+		return streamingDownloads;
+	}
+	
+	/**
+	 * @param streamingDownloads if true, downloads are written to the disk cache and decoded at the
+	 * same time, as they arrive, instead of being read into memory first. Large images never sit in
+	 * memory encoded, and are shown sooner, but they are decoded on the network pool. Takes effect
+	 * if the disk cache is enabled.
+	 */
+	public void setStreamingDownloads(boolean streamingDownloads) {
+		this.streamingDownloads = streamingDownloads;
+	}
+	
+	public boolean isProgressivePreviews() {
+		return progressivePreviews;
+	}
+	
+	/**
+	 * @param progressivePreviews if true, images not in memory are first shown as a tiny preview,
+	 * with {@link #IMAGE_STATUS_PREVIEW}, while they are decoded. Previews are made from the
+	 * thumbnail embedded in cached JPEG files, or by decoding the cached or downloaded image heavily
+	 * sampled down, so they show up fast. They are not transformed.
+	 */
+	public void setProgressivePreviews(boolean progressivePreviews) {
+		this.progressivePreviews = progressivePreviews;
+	}
+	
+	public boolean isPrefetchIntoMemory() {
+		return prefetchIntoMemory;
+	}
+	
+	/**
+	 * @param prefetchIntoMemory if true, prefetched images are decoded into the in-memory cache,
+	 * otherwise (by default) they are only stored on disk
+	 */
+	public void setPrefetchIntoMemory(boolean prefetchIntoMemory) {
+		this.prefetchIntoMemory = prefetchIntoMemory;
+	}
+	
+	/**
+	 * @return number of images requested for views so far
+	 */
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+	
+	/**
+	 * @return number of images requested for views which were already cached, the closer it is
+	 * to {@link #getRequestCount()}, the better prefetching works
+	 */
+	public int getCacheReadyCount() {
+		return cacheReadyCount.get();
+	}
+	
+	/**
+	 * Warms the cache with images that will probably be shown soon. Prefetches run in the background,
+	 * visible requests always go first; if a view requests an image which is being prefetched, the
+	 * download is taken over at visible priority.
+	 * @param urls images to fetch, most important first
+	 * @param priority usually {@link DownloadScheduler#PRIORITY_PREFETCH}, must be lower than
+	 * {@link DownloadScheduler#PRIORITY_VISIBLE}
+	 */
+	public void prefetch(List<String> urls, int priority)
+	{
+		prefetch(urls, priority, 0, 0);
+	}
+	
+	/**
+	 * Prefetches images, see {@link #prefetch(List, int)}.
+	 * @param reqWidth width to decode the images at if {@link #setPrefetchIntoMemory prefetched into memory},
+	 * 0 for the full image
+	 * @param reqHeight height to decode the images at, 0 for the full image
+	 */
+	public void prefetch(List<String> urls, int priority, int reqWidth, int reqHeight)
+	{
+		if(priority >= DownloadScheduler.PRIORITY_VISIBLE)
+			throw new IllegalArgumentException("Prefetch priority must be lower than PRIORITY_VISIBLE, got " + priority);
+	
+		// the most important goes last, as queued jobs of the same priority run newest first
+		for(int i = urls.size() - 1; i >= 0; i--)
+		{
+			String url = urls.get(i);
+			if(url == null || url.length() == 0 || imageCache.containsKeyInMemory(url))
+				continue;
+	
+			synchronized (prefetches) {
+				if(prefetches.containsKey(url))
+					continue;
+				prefetches.put(url, null);
+			}
+	
+			scheduler.executeDecode(new PrefetchJob(url, priority, reqWidth, reqHeight));
+		}
+	}
+	
+	/**
+	 * Cancels prefetches of images not on the list, e.g. when the user scrolled away from them.
+	 * Downloads that a view waits for are not affected.
+	 */
+	public void retainPrefetch(Collection<String> urls)
+	{
+		List<Flight<Bitmap>> toLeave = new ArrayList<Flight<Bitmap>>();
+		synchronized (prefetches) {
+			Iterator<Map.Entry<String, Flight<Bitmap>>> it = prefetches.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<String, Flight<Bitmap>> entry = it.next();
+				if(!urls.contains(entry.getKey()))
+				{
+					if(entry.getValue() != null)
+						toLeave.add(entry.getValue());
+					it.remove();
+				}
+			}
+		}
+	
+		for(Flight<Bitmap> flight : toLeave)
+		{
+			inFlightDownloads.leave(flight);
+		}
+	}
+	
+	/**
+	 * Cancels all prefetches.
+	 */
+	public void cancelPrefetch()
+	{
+		retainPrefetch(new HashSet<String>());
+	}
+	
+	private boolean isPrefetchPending(String url)
+	{
+		synchronized (prefetches) {
+			return prefetches.containsKey(url);
+		}
+	}
+	
+	/**
+	 * @param flight the flight the prefetch subscribed to, or null
+	 */
+	private void finishPrefetch(String url, Flight<Bitmap> flight)
+	{
+		synchronized (prefetches) {
+			if(!prefetches.containsKey(url) || prefetches.get(url) != flight)
+				// cancelled, already unsubscribed
+				return;
+			prefetches.remove(url);
+		}
+	
+		if(flight != null)
+			inFlightDownloads.leave(flight);
+	}
+	
+	/**
+	 * Checks the cache for a prefetched image, and starts its download at background priority if needed.
+	 */
+	private class PrefetchJob extends DownloadScheduler.Job
+	{
+		private final String url;
+		private final int reqWidth;
+		private final int reqHeight;
+		private final Transformation transformation;
+		
+		PrefetchJob(String url, int priority, int reqWidth, int reqHeight)
+		{
+			super(priority);
+			this.url = url;
+			this.reqWidth = reqWidth;
+			this.reqHeight = reqHeight;
+			this.transformation = FastImageDownloader.this.transformation;
+		}
+	
+		@Override
+		protected boolean isStale() {
+			return !isPrefetchPending(url);
+		}
+	
+		@Override
+		protected void execute() {
+			boolean intoMemory = prefetchIntoMemory;
+			boolean cached = intoMemory
+					? imageCache.getBitmap(url, reqWidth, reqHeight, transformation) != null
+					: imageCache.containsKey(url);
+			if(cached || !isOnline())
+			{
+				finishPrefetch(url, null);
+				return;
+			}
+	
+			final Flight<Bitmap> flight = inFlightDownloads.join(url);
+			synchronized (prefetches) {
+				if(!prefetches.containsKey(url))
+				{
+					// cancelled meanwhile
+					inFlightDownloads.leave(flight);
+					return;
+				}
+				prefetches.put(url, flight);
+			}
+	
+			if(flight.claim())
+			{
+				FetchJob job = new FetchJob(flight, getPriority(), null, intoMemory, reqWidth, reqHeight, transformation);
+				backgroundFetches.put(url, job);
+				scheduler.executeNetwork(job);
+			}
+	
+			flight.addListener(new Listener<Bitmap>() {
+				@Override
+				public void onFlightDone(Bitmap result) {
+					finishPrefetch(url, flight);
+				}
+			});
+		}
+	}
+	
 	/**
 	 * *****************************************************************************
-	 * Class responsible for downloading and caching images
+	 * Class responsible for downloading and caching images.
+	 * The cache lookup and decoding run on the scheduler's decode pool, the transfer on its
+	 * network pool; views are updated on the main thread.
 	 * @author Daniel Dudek (kontakt@ddudek.pl)
 	 * 
 	 * *****************************************************************************
 	 */
-	private class CachedDownloadImageTask extends AsyncTask<Object, Integer, Bitmap>{
+	private class CachedDownloadImageTask implements Listener<Bitmap>, ImageFetcher.ProgressListener {
 
 		private final WeakReference<ViewHolder<V>> viewHolderReference;
 		int originalPosition;
 		String originalURL;
-		private final int defaultBufferSize = 10 * 1024;
+		int reqWidth;
+		int reqHeight;
+		Transformation transformation;
+		boolean progressive;
+		
+		private volatile boolean cancelled;
+		
+		private Flight<Bitmap> flight;
 
-		public CachedDownloadImageTask(ViewHolder<V> viewHolder, FastImageCache imageCacheInstance) {
+		public CachedDownloadImageTask(ViewHolder<V> viewHolder) {
 			originalPosition = viewHolder.position;
 			originalURL = viewHolder.url;
+			reqWidth = viewHolder.reqWidth;
+			reqHeight = viewHolder.reqHeight;
+			transformation = viewHolder.transformation;
+			progressive = progressivePreviews;
 			viewHolderReference = new WeakReference<ViewHolder<V>>(viewHolder);
 		}
 		
-		@Override
-		protected void onCancelled() {
+		void start()
+		{
+			scheduler.executeDecode(new DownloadScheduler.Job(DownloadScheduler.PRIORITY_VISIBLE) {
+				@Override
+				protected boolean isStale() {
+					return CachedDownloadImageTask.this.isStale();
+				}
+				
+				@Override
+				protected void execute() {
+					lookup();
+				}
+			});
+		}
+		
+		void cancel()
+		{
+			cancelled = true;
+			unsubscribe();
 			cleanup();
-			imageCache.removeKey(originalURL);
-			super.onCancelled();
 		}
 		
-		protected void cleanup()
+		boolean isCancelled()
 		{
-			this.viewHolderReference.clear();
+			return cancelled;
 		}
-
-		@Override
-		protected void onPreExecute() {
-			if(!isOnline())
+		
+		/**
+		 * @return true if the view was recycled for another item, or the task was cancelled
+		 */
+		private boolean isStale()
+		{
+			if(cancelled) return true;
+			
+			ViewHolder<V> originalViewHolder = viewHolderReference.get();
+			return originalViewHolder == null || originalViewHolder.position != originalPosition;
+		}
+		
+		private synchronized Flight<Bitmap> subscribe(String url)
+		{
+			if(isCancelled()) return null;
+			
+			flight = inFlightDownloads.join(url);
+			return flight;
+		}
+		
+		synchronized void unsubscribe()
+		{
+			if(flight != null)
 			{
-				this.cancel(false);
-				safeUpdateStatus(IMAGE_STATUS_NO_CONNECTION);
+				inFlightDownloads.leave(flight);
+				flight = null;
 			}
 		}
+		
+		protected void cleanup()
+		{
+			this.viewHolderReference.clear();
+		}
 
-		@Override
-		protected Bitmap doInBackground(Object... params) {
+		/**
+		 * Runs on the decode pool: serves the image from cache, or subscribes to its download.
+		 */
+		private void lookup() {
 			
-			String url = (String) params[0];
+			String url = originalURL;
 			
-			safeUpdateStatus(IMAGE_STATUS_DOWNLOADING);
+			postStatusUpdate(IMAGE_STATUS_DOWNLOADING);
 
-			Bitmap resultImage;
-			Bitmap cachedImage =  imageCache.getBitmap(url);
-			if(cachedImage == null)
+			if(progressive)
 			{
-				try{
-					url = (String) params[0];
-					
-					byte [] source = loadImageData(url);
-					if(source!=null && source.length != 0)
-					{
-						byte[] processed = FastImageDownloader.this.processBytesAfterDownload(source);
-
-						if(processed == null || processed.length == 0)
-							throw new IOException("After download returned no bytes, url: " + url);
-							
-						resultImage = imageCache.putWithSource(url, processed);
-					}
-					else return null;
-					
+				Bitmap inMemory = imageCache.getBitmapFromMemory(url, reqWidth, reqHeight, transformation);
+				if(inMemory == null)
+				{
+					// reading it from disk may take a while
+					Bitmap preview = imageCache.getPreview(url, getPreviewSize());
+					if(preview != null)
+						postPreview(preview);
 				}
-				catch (Exception e) {
-					e.printStackTrace();
-					return null;
+			}
+			
+			Bitmap cachedImage =  imageCache.getBitmapAndRetain(url, reqWidth, reqHeight, transformation);
+			if(cachedImage != null)
+			{
+				cacheReadyCount.incrementAndGet();
+				postResult(cachedImage);
+				return;
+			}
+			
+			if(!isOnline())
+			{
+				postStatusUpdate(IMAGE_STATUS_NO_CONNECTION);
+				return;
+			}
+			
+			Flight<Bitmap> flight = subscribe(url);
+			if(flight == null) return;
+			
+			if(flight.claim())
+			{
+				// it may have been cached since our lookup
+				cachedImage = imageCache.getBitmapAndRetain(url, reqWidth, reqHeight, transformation);
+				if(cachedImage != null)
+				{
+					inFlightDownloads.complete(flight, cachedImage);
+					imageCache.releaseBitmap(cachedImage);
 				}
+				else
+					scheduler.executeNetwork(new FetchJob(flight, DownloadScheduler.PRIORITY_VISIBLE, this, true,
+							reqWidth, reqHeight, transformation));
 			}
 			else
 			{
-				resultImage = cachedImage;
+				// don't wait behind other prefetches
+				FastImageDownloader<?>.FetchJob background = backgroundFetches.get(url);
+				if(background != null)
+					background.promote(reqWidth, reqHeight, transformation);
 			}
 			
-			return resultImage;
+			// someone else may be already downloading this url, we get the result either way
+			flight.addListener(this);
+		}
+		
+		@Override
+		public void onFlightDone(Bitmap result) {
+			if(isCancelled())
+				return;
+			
+			// the result may be pooled already once its flight completed, and prefetches only store
+			// images on disk, or the download was decoded for a smaller view or transformed
+			// otherwise; so it is looked up again, mostly a memory hit
+			Bitmap inMemory = imageCache.getBitmapFromMemoryAndRetain(originalURL, reqWidth, reqHeight, transformation);
+			if(inMemory != null)
+			{
+				postResult(inMemory);
+				return;
+			}
+			
+			// called on the thread completing the flight, often a network thread; subscribers
+			// decoding or transforming their own variant don't wait for each other there
+			scheduler.executeDecode(new DownloadScheduler.Job(DownloadScheduler.PRIORITY_VISIBLE) {
+				@Override
+				protected boolean isStale() {
+					return CachedDownloadImageTask.this.isStale();
+				}
+				
+				@Override
+				protected void execute() {
+					postResult(imageCache.getBitmapAndRetain(originalURL, reqWidth, reqHeight, transformation));
+				}
+			});
+		}
+		
+		private void postStatusUpdate(final int status)
+		{
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(!isCancelled())
+						safeUpdateStatus(status);
+				}
+			});
+		}
+		
+		/**
+		 * @param result bitmap retained by the caller, released unless it gets shown, or null
+		 */
+		private void postResult(final Bitmap result)
+		{
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(!isCancelled())
+						onPostExecute(result);
+					else
+						imageCache.releaseBitmap(result);
+				}
+			});
+		}
+		
+		/**
+		 * @return size previews should roughly fit in
+		 */
+		int getPreviewSize()
+		{
+			int size = Math.max(reqWidth, reqHeight);
+			if(size <= 0)
+				return DEFAULT_PREVIEW_SIZE;
+			return Math.max(MIN_PREVIEW_SIZE, size / PREVIEW_SCALE);
+		}
+		
+		/**
+		 * Shows the preview, unless the view was recycled meanwhile.
+		 */
+		void postPreview(final Bitmap preview)
+		{
+			imageCache.retainBitmap(preview);
+			
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(!isCancelled() && onPreview(preview))
+						return;
+					imageCache.releaseBitmap(preview);
+				}
+			});
+		}
+		
+		@Override
+		public void onProgress(final int bytesRead, final int bytesTotalOrMinusOne)
+		{
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(!isCancelled())
+						onProgressUpdate(bytesRead, bytesTotalOrMinusOne);
+				}
+			});
 		}
 		
 		protected void safeUpdateStatus(int status)
@@ -422,7 +1002,6 @@ public class FastImageDownloader<V extends View> {
 			}
 		}
 
-		@Override
 		protected void onPostExecute(Bitmap result) {
 			
 			ViewHolder<V> originalViewHolder = viewHolderReference.get();
@@ -439,19 +1018,43 @@ public class FastImageDownloader<V extends View> {
 					}
 					else
 					{
-						FastImageDownloader.this.processViewOnImageAvailable(result, originalViewHolder.imageView);
+						FastImageDownloader.this.showBitmap(originalViewHolder, result);
 						originalViewHolder.status = IMAGE_STATUS_DOWNLOADED;
 						FastImageDownloader.this.processViewOnStatusUpdate(originalViewHolder.imageView, originalURL, originalPosition, IMAGE_STATUS_DOWNLOADED);
 					}
+					return;
 				}
 				else
 				{
 					// view was inflated
 				}
 			}
+			
+			// not shown
+			imageCache.releaseBitmap(result);
 		}
 		
-		protected void onProgressUpdate(Integer... progress) {
+		/**
+		 * @return true if the preview was shown
+		 */
+		protected boolean onPreview(Bitmap preview) {
+			ViewHolder<V> originalViewHolder = viewHolderReference.get();
+			
+			// if the original view holeder was not gc'ed, and if this view is still showing this item
+			if(originalViewHolder == null || originalViewHolder.position != originalPosition)
+				return false;
+			
+			// the image may have been shown already
+			if(originalViewHolder.status != IMAGE_STATUS_DOWNLOADING)
+				return false;
+			
+			FastImageDownloader.this.showBitmap(originalViewHolder, preview);
+			originalViewHolder.status = IMAGE_STATUS_PREVIEW;
+			FastImageDownloader.this.processViewOnStatusUpdate(originalViewHolder.imageView, originalURL, originalPosition, IMAGE_STATUS_PREVIEW);
+			return true;
+		}
+		
+		protected void onProgressUpdate(int bytesRead, int bytesTotalOrMinusOne) {
 			ViewHolder<V> originalViewHolder = viewHolderReference.get();
 			
 			// if the original view holeder was not gc'ed
@@ -459,82 +1062,343 @@ public class FastImageDownloader<V extends View> {
 				// and if this view is still showing this item
 				if(originalViewHolder.position == originalPosition)
 				{
-					FastImageDownloader.this.processViewOnProgress(originalViewHolder.imageView, progress[0], progress[1]);
+					FastImageDownloader.this.processViewOnProgress(originalViewHolder.imageView, bytesRead, bytesTotalOrMinusOne);
 				}
 			}
 	    }
+	}
+	
+	/**
+	 * Downloads the image of a flight on the network pool, then hands it to a {@link DecodeJob}.
+	 */
+	private class FetchJob extends DownloadScheduler.Job
+	{
+		private final Flight<Bitmap> flight;
+		private final CachedDownloadImageTask progressTask;
+		private final boolean decode;
+		private final int reqWidth;
+		private final int reqHeight;
+		private final Transformation transformation;
 		
-		public byte[] loadImageData(String imageUrl) throws IOException {
-	        URL url = new URL(imageUrl);
-
-	        if(isCancelled()) return null;
-	        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-	        if(isCancelled()) return null;
-	        // determine the image size and allocate a buffer
-	        int fileSize = connection.getContentLength();
-	        Log.d("DownloadImageTask", "fetching image " + imageUrl + " (" + (fileSize <= 0 ? "size unknown" : Integer.toString(fileSize)) + ")");
-	        
-	        BufferedInputStream istream = new BufferedInputStream(connection.getInputStream(), fileSize<=0?defaultBufferSize:fileSize);
-
-	        try {   
-	            if (fileSize <= 0) {
-	                Log.w(imageUrl,
-	                        "Server did not set a Content-Length header, will default to buffer size of "
-	                                + defaultBufferSize + " bytes");
-	                ByteArrayOutputStream buf = new ByteArrayOutputStream(defaultBufferSize);
-	                
-	                byte[] buffer = new byte[defaultBufferSize];
-	                int bytesRead = 0;
-	                int bytesReadTotal = 0;
-	                while (bytesRead != -1) {
-	                    bytesRead = istream.read(buffer, 0, defaultBufferSize);
-	                    if (bytesRead > 0)
-	                        buf.write(buffer, 0, bytesRead);
-	                    
-	                    bytesReadTotal += bytesRead;
-	                    
-	                    publishProgress(bytesReadTotal, -1);
-//	                    if(isCancelled()) return null;
-	                }
-	                return buf.toByteArray();
-	            } else {
-	                byte[] imageData = new byte[fileSize];
-	        
-	                int bytesRead = 0;
-	                int offset = 0;
-	                while (bytesRead != -1 && offset < fileSize) {
-	                    bytesRead = istream.read(imageData, offset, fileSize - offset);
-	                    offset += bytesRead;
-//	                    if(isCancelled()) return null;
-	                    
-	                    publishProgress(offset, fileSize);
-	                }
-	                return imageData;
-	            }
-	        } catch (Exception e) {
-				e.printStackTrace();
-				imageCache.remove(originalURL);
-				return null;
-			} finally {
-	            // clean up
-	            try {
-	                istream.close();
-	            } catch (Exception ignore) { ignore.printStackTrace(); }
-	            try {
-	                connection.disconnect();
-	            } catch (Exception ignore) { ignore.printStackTrace(); }
-	        }
-	    }
+		/**
+		 * shared with the copy queued by {@link #promote}, only one of them runs
+		 */
+		private final AtomicBoolean started;
+		private final FetchJob promotedFrom;
+		
+		/**
+		 * @param progressTask task to report progress to, or null
+		 * @param decode whether to decode the image into memory, or just store it on disk
+		 * @param reqWidth width to decode the image at, 0 for the full image
+		 * @param reqHeight height to decode the image at, 0 for the full image
+		 * @param transformation transformation to apply if decoding, or null
+		 */
+		FetchJob(Flight<Bitmap> flight, int priority, CachedDownloadImageTask progressTask, boolean decode,
+				int reqWidth, int reqHeight, Transformation transformation)
+		{
+			this(flight, priority, progressTask, decode, reqWidth, reqHeight, transformation, new AtomicBoolean(), null);
+		}
+		
+		private FetchJob(Flight<Bitmap> flight, int priority, CachedDownloadImageTask progressTask, boolean decode,
+				int reqWidth, int reqHeight, Transformation transformation, AtomicBoolean started, FetchJob promotedFrom)
+		{
+			super(priority);
+			this.flight = flight;
+			this.progressTask = progressTask;
+			this.decode = decode;
+			this.reqWidth = reqWidth;
+			this.reqHeight = reqHeight;
+			this.transformation = transformation;
+			this.started = started;
+			this.promotedFrom = promotedFrom;
+		}
+		
+		/**
+		 * Queues a copy of this background job at visible priority, as a visible view now waits for it.
+		 */
+		void promote(int reqWidth, int reqHeight, Transformation transformation)
+		{
+			if(!started.get())
+				scheduler.executeNetwork(new FetchJob(flight, DownloadScheduler.PRIORITY_VISIBLE, null, true,
+						reqWidth, reqHeight, transformation, started, this));
+		}
+		
+		@Override
+		protected boolean isStale() {
+			return started.get() || flight.isCancelled();
+		}
+		
+		@Override
+		protected void onDropped() {
+			if(started.compareAndSet(false, true))
+			{
+				backgroundFetches.remove(flight.getKey(), promotedFrom != null ? promotedFrom : this);
+				inFlightDownloads.complete(flight, null);
+			}
+		}
+		
+		@Override
+		protected void execute() {
+			if(!started.compareAndSet(false, true))
+				return;
+			backgroundFetches.remove(flight.getKey(), promotedFrom != null ? promotedFrom : this);
+			
+			String url = flight.getKey();
+			if(isFlightCancelled(flight))
+			{
+				inFlightDownloads.complete(flight, null);
+				return;
+			}
+			
+			// a stale image is revalidated, instead of downloaded again if unchanged
+			CacheValidators stale = imageCache.getStaleValidators(url);
+			
+			byte [] source = null;
+			CacheValidators validators = null;
+			ImageTransport.Response response = null;
+			long start = metrics.startTimer();
+			try {
+				response = transport.open(url, ImageFetcher.getConditionalHeaders(stale));
+				int responseCode = response.getCode();
+				if(stale != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+				{
+					notModified(stale.revalidated(ImageFetcher.readValidators(response), System.currentTimeMillis()));
+					return;
+				}
+				
+				// a changed image replaces the stale one, and its variants, once it is cached
+				validators = ImageFetcher.readValidators(response);
+				
+				if(streamingDownloads && imageCache.isDiskCacheEnabled())
+				{
+					stream(response, validators, start);
+					return;
+				}
+				
+				source = loadImageData(response, url, flight, progressTask);
+				if(source != null && source.length > 0)
+					metrics.recordDownload(start, source.length);
+			}
+			catch (Exception e) {
+				FastImageLog.w(TAG, "Download failed", e);
+			}
+			finally {
+				// keeps the connection for the next image
+				if(response != null)
+					response.close();
+			}
+			
+			if(source == null || source.length == 0)
+			{
+				if(!isFlightCancelled(flight))
+					metrics.recordDownloadFailure();
+				inFlightDownloads.complete(flight, null);
+				return;
+			}
+			
+			DecodeJob decodeJob = new DecodeJob(flight, source, getPriority(), decode, reqWidth, reqHeight, transformation);
+			decodeJob.validators = validators;
+			if(decode && progressTask != null && progressTask.progressive)
+				decodeJob.previewTask = progressTask;
+			scheduler.executeDecode(decodeJob);
+		}
+		
+		/**
+		 * The stale image in the cache is still valid: refreshes it, and serves it from the cache.
+		 */
+		private void notModified(CacheValidators validators) {
+			if(FastImageLog.isLoggable(ImageLogger.DEBUG))
+				FastImageLog.d(TAG, "not modified " + flight.getKey());
+			metrics.recordNotModified();
+			
+			if(imageCache.revalidate(flight.getKey(), validators) && decode)
+				scheduler.executeDecode(new DecodeJob(flight, null, getPriority(), decode, reqWidth, reqHeight, transformation));
+			else
+				// subscribers getting null will find it on disk
+				inFlightDownloads.complete(flight, null);
+		}
+		
+		/**
+		 * Downloads the image straight into the cache, decoding it meanwhile if needed.
+		 */
+		private void stream(ImageTransport.Response response, CacheValidators validators, long startNanos) {
+			Bitmap resultImage = null;
+			try {
+				resultImage = streamImageData(response, flight.getKey(), flight, progressTask, decode, reqWidth, reqHeight,
+						validators, startNanos);
+			}
+			catch (Exception e) {
+				FastImageLog.w(TAG, "Download failed", e);
+				if(!isFlightCancelled(flight))
+					metrics.recordDownloadFailure();
+				inFlightDownloads.complete(flight, null);
+				return;
+			}
+			
+			if(decode && transformation != null && resultImage != null)
+			{
+				imageCache.releaseBitmap(resultImage);
+				// the transformation runs on the decode pool, like for buffered downloads
+				scheduler.executeDecode(new DecodeJob(flight, null, getPriority(), decode, reqWidth, reqHeight, transformation));
+			}
+			else
+			{
+				inFlightDownloads.complete(flight, resultImage);
+				imageCache.releaseBitmap(resultImage);
+			}
+		}
+	}
+	
+	/**
+	 * Decodes, transforms and caches a downloaded image on the decode pool, and completes its flight.
+	 * Streamed and revalidated images are cached already, they are only transformed.
+	 */
+	private class DecodeJob extends DownloadScheduler.Job
+	{
+		private final Flight<Bitmap> flight;
+		private final byte[] source;
+		private final boolean decode;
+		private final int reqWidth;
+		private final int reqHeight;
+		private final Transformation transformation;
+		
+		/**
+		 * task to show a preview of the downloaded image to while it is decoded, or null
+		 */
+		CachedDownloadImageTask previewTask;
+		
+		/**
+		 * HTTP validators of the download, or null
+		 */
+		CacheValidators validators;
+		
+		DecodeJob(Flight<Bitmap> flight, byte[] source, int priority, boolean decode, int reqWidth, int reqHeight,
+				Transformation transformation)
+		{
+			super(priority);
+			this.flight = flight;
+			this.source = source;
+			this.decode = decode;
+			this.reqWidth = reqWidth;
+			this.reqHeight = reqHeight;
+			this.transformation = transformation;
+		}
+		
+		@Override
+		protected boolean isStale() {
+			return flight.isCancelled();
+		}
+		
+		@Override
+		protected void onDropped() {
+			inFlightDownloads.complete(flight, null);
+		}
+		
+		@Override
+		protected void execute() {
+			String url = flight.getKey();
+			Bitmap resultImage = null;
+			try{
+				if(source == null)
+				{
+					// streamed into the cache, or revalidated
+					if(decode)
+						resultImage = imageCache.getBitmapAndRetain(url, reqWidth, reqHeight, transformation);
+				}
+				else
+				if(decode)
+				{
+					if(previewTask != null && !previewTask.isCancelled())
+					{
+						Bitmap preview = BitmapDecoder.decodePreview(source, source.length, previewTask.getPreviewSize());
+						if(preview != null)
+							previewTask.postPreview(preview);
+					}
+					
+					resultImage = imageCache.putWithSource(url, source, reqWidth, reqHeight, validators);
+					if(resultImage != null && transformation != null)
+					{
+						imageCache.releaseBitmap(resultImage);
+						resultImage = imageCache.getBitmapAndRetain(url, reqWidth, reqHeight, transformation);
+					}
+				}
+				else
+					// subscribers getting null will find it on disk
+					imageCache.putSourceOnDisk(url, source, validators);
+			}
+			catch (Exception e) {
+				FastImageLog.e(TAG, "Decoding failed", e);
+			}
+			finally {
+				// kept out of the bitmap pool while the subscribers are notified
+				inFlightDownloads.complete(flight, resultImage);
+				imageCache.releaseBitmap(resultImage);
+			}
+		}
+	}
+	
+	/**
+	 * @param progressTask task to report progress to, or null
+	 */
+	private byte[] loadImageData(ImageTransport.Response response, String imageUrl, Flight<Bitmap> flight,
+			CachedDownloadImageTask progressTask) {
+		if(FastImageLog.isLoggable(ImageLogger.DEBUG))
+		{
+			int fileSize = response.getContentLength();
+			FastImageLog.d(TAG, "fetching image " + imageUrl + " (" + (fileSize <= 0 ? "size unknown" : Integer.toString(fileSize)) + ")");
+		}
+		
+		try {
+			return ImageFetcher.readBody(response, flight, progressTask);
+		} catch (Exception e) {
+			// nothing was cached yet, what is cached of the image stays
+			FastImageLog.w(TAG, "Download failed", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Downloads the image into the cache, see {@link FastImageCache#putFromStream}.
+	 * @param progressTask task to report progress to, or null
+	 * @param startNanos start of the download, see {@link ImageMetrics#startTimer()}
+	 * @return the decoded image, or null if not decoded
+	 * @throws IOException if the download failed or was cancelled, nothing is cached then
+	 */
+	private Bitmap streamImageData(ImageTransport.Response response, String imageUrl, Flight<Bitmap> flight,
+			CachedDownloadImageTask progressTask, boolean decode, int reqWidth, int reqHeight,
+			CacheValidators validators, long startNanos) throws IOException {
+		int fileSize = response.getContentLength();
+		if(FastImageLog.isLoggable(ImageLogger.DEBUG))
+			FastImageLog.d(TAG, "streaming image " + imageUrl + " (" + (fileSize <= 0 ? "size unknown" : Integer.toString(fileSize)) + ")");
+		
+		// not closed, the body is closed with the response
+		ImageFetcher.ProgressInputStream istream = new ImageFetcher.ProgressInputStream(response.getBody(), flight,
+				progressTask, fileSize);
+		Bitmap resultImage = imageCache.putFromStream(imageUrl, istream, decode, reqWidth, reqHeight, validators);
+		metrics.recordDownload(startNanos, istream.getBytesRead());
+		return resultImage;
+	}
+	
+	private static boolean isFlightCancelled(Flight<Bitmap> flight)
+	{
+		return flight != null && flight.isCancelled();
 	}
 	
 	private class ViewHolder<V extends View>
 	{
 		int position;
 		String url;
+		int reqWidth;
+		int reqHeight;
+		Transformation transformation;
 		int status;
 		V imageView;
 		
+		/**
+		 * image last set on the view, retained in the cache until the view is given another one
+		 */
+		Bitmap shownBitmap;
+		
 		CachedDownloadImageTask downloadTask;		
 	}
 
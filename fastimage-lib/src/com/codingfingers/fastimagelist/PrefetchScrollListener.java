@@ -0,0 +1,231 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.codingfingers.fastimagelist.download.DownloadScheduler;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Scroll listener which prefetches images of the items the list is scrolling towards. The number
+ * of prefetched items follows the scroll speed (it covers about {@link #getLeadTime() lead time}
+ * of scrolling), and the lead time itself adapts to the share of requests the downloader serves
+ * from cache: it grows while views still wait for downloads and shrinks back when they don't.
+ * 
+ * Usage: list.setOnScrollListener(new PrefetchScrollListener(downloader, urlProvider));
+ */
+public class PrefetchScrollListener implements OnScrollListener {
+
+	/**
+	 * Provides the image url for a list position.
+	 */
+	public interface UrlProvider
+	{
+		/**
+		 * @return image url, or null if the item has no image
+		 */
+		String getImageUrl(int position);
+	}
+	
+	public static final int DEFAULT_MIN_WINDOW = 4;
+	public static final int DEFAULT_MAX_WINDOW = 40;
+	
+	/**
+	 * share of requests that should be served from cache
+	 */
+	private static final float TARGET_CACHE_READY_RATE = 0.9f;
+	
+	/**
+	 * number of requests between lead time adjustments
+	 */
+	private static final int ADJUST_EVERY_REQUESTS = 10;
+	
+	private static final float MIN_LEAD_TIME = 0.5f;
+	private static final float MAX_LEAD_TIME = 5f;
+	
+	private final FastImageDownloader<?> downloader;
+	private final UrlProvider urlProvider;
+	private final OnScrollListener delegate;
+	
+	private int minWindow = DEFAULT_MIN_WINDOW;
+	private int maxWindow = DEFAULT_MAX_WINDOW;
+	
+	/**
+	 * seconds of scrolling covered by the prefetch window
+	 */
+	private float leadTime = 1f;
+	
+	/**
+	 * smoothed scroll speed, in items per second
+	 */
+	private float velocity;
+	private int direction = 1;
+	
+	private int lastFirstVisible = -1;
+	private long lastScrollTime;
+	
+	private int lastRequestCount;
+	private int lastCacheReadyCount;
+	
+	// last prefetched range, inclusive
+	private int windowFrom = -1;
+	private int windowTo = -1;
+	
+	public PrefetchScrollListener(FastImageDownloader<?> downloader, UrlProvider urlProvider)
+	{
+		this(downloader, urlProvider, null);
+	}
+	
+	/**
+	 * @param delegate listener that gets all scroll events too, or null
+	 */
+	public PrefetchScrollListener(FastImageDownloader<?> downloader, UrlProvider urlProvider, OnScrollListener delegate)
+	{
+		this.downloader = downloader;
+		this.urlProvider = urlProvider;
+		this.delegate = delegate;
+		this.lastRequestCount = downloader.getRequestCount();
+		this.lastCacheReadyCount = downloader.getCacheReadyCount();
+	}
+	
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		if(scrollState == SCROLL_STATE_IDLE)
+		{
+			velocity = 0;
+		}
+		
+		if(delegate != null)
+			delegate.onScrollStateChanged(view, scrollState);
+	}
+	
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if(delegate != null)
+			delegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		
+		if(visibleItemCount == 0 || totalItemCount == 0)
+			return;
+		
+		long now = SystemClock.uptimeMillis();
+		if(lastFirstVisible >= 0 && firstVisibleItem != lastFirstVisible)
+		{
+			direction = firstVisibleItem > lastFirstVisible ? 1 : -1;
+			
+			long elapsed = Math.max(1, now - lastScrollTime);
+			float currentVelocity = Math.abs(firstVisibleItem - lastFirstVisible) * 1000f / elapsed;
+			velocity = (velocity + currentVelocity) / 2;
+		}
+		
+		if(firstVisibleItem != lastFirstVisible)
+		{
+			lastFirstVisible = firstVisibleItem;
+			lastScrollTime = now;
+		}
+		
+		adjustLeadTime();
+		
+		int window = getWindowSize(visibleItemCount);
+		int from, to;
+		if(direction > 0)
+		{
+			from = firstVisibleItem + visibleItemCount;
+			to = Math.min(totalItemCount - 1, from + window - 1);
+		}
+		else
+		{
+			to = firstVisibleItem - 1;
+			from = Math.max(0, to - window + 1);
+		}
+		
+		if(from > to || (from == windowFrom && to == windowTo))
+			return;
+		
+		windowFrom = from;
+		windowTo = to;
+		
+		// nearest first
+		List<String> urls = new ArrayList<String>(to - from + 1);
+		for(int i = 0; i <= to - from; i++)
+		{
+			String url = urlProvider.getImageUrl(direction > 0 ? from + i : to - i);
+			if(url != null)
+				urls.add(url);
+		}
+		
+		downloader.retainPrefetch(urls);
+		downloader.prefetch(urls, DownloadScheduler.PRIORITY_PREFETCH);
+	}
+	
+	/**
+	 * Grows the lead time while views wait for downloads, shrinks it while they don't.
+	 */
+	private void adjustLeadTime()
+	{
+		int requests = downloader.getRequestCount() - lastRequestCount;
+		if(requests < ADJUST_EVERY_REQUESTS)
+			return;
+		
+		int ready = downloader.getCacheReadyCount() - lastCacheReadyCount;
+		lastRequestCount += requests;
+		lastCacheReadyCount += ready;
+		
+		if((float) ready / requests < TARGET_CACHE_READY_RATE)
+			leadTime = Math.min(MAX_LEAD_TIME, leadTime * 1.25f);
+		else
+			leadTime = Math.max(MIN_LEAD_TIME, leadTime * 0.9f);
+	}
+	
+	/**
+	 * @return number of items to prefetch, at least a screenful
+	 */
+	private int getWindowSize(int visibleItemCount)
+	{
+		int window = Math.max(visibleItemCount, Math.round(velocity * leadTime));
+		return Math.max(minWindow, Math.min(maxWindow, window));
+	}
+	
+	public float getLeadTime() {
+		return leadTime;
+	}
+	
+	public int getMinWindow() {
+		return minWindow;
+	}
+	
+	/**
+	 * @param minWindow minimal number of items prefetched ahead, by default {@link #DEFAULT_MIN_WINDOW}
+	 */
+	public void setMinWindow(int minWindow) {
+		this.minWindow = minWindow;
+	}
+	
+	public int getMaxWindow() {
+		return maxWindow;
+	}
+	
+	/**
+	 * @param maxWindow maximal number of items prefetched ahead, by default {@link #DEFAULT_MAX_WINDOW}
+	 */
+	public void setMaxWindow(int maxWindow) {
+		this.maxWindow = maxWindow;
+	}
+}
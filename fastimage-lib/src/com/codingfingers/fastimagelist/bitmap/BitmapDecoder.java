@@ -0,0 +1,327 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Decodes images, downsampling them at decode time when a smaller size is requested.
+ */
+public class BitmapDecoder {
+	
+	/**
+	 * quality of JPEG images encoded by {@link #encode(Bitmap)}
+	 */
+	private static final int JPEG_QUALITY = 90;
+	
+	/**
+	 * buffer size of streams decoded by {@link #decodeStream}
+	 */
+	private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+	
+	/**
+	 * how much of a stream may be read to get the bounds of the image; JPEG headers with an EXIF
+	 * thumbnail take up to 64 KB
+	 */
+	private static final int BOUNDS_READ_LIMIT = 128 * 1024;
+	
+	/**
+	 * Build.VERSION_CODES.KITKAT, not in the android-16 platform the library builds against
+	 */
+	private static final int KITKAT = 19;
+
+	/**
+	 * Decodes the image, sampled down by the largest power of two that keeps it at least as big
+	 * as requested. Decoding this way takes roughly sampleSize^2 less time and memory than
+	 * decoding the full image and scaling it.
+	 * @param reqWidth requested width, 0 or less for no limit
+	 * @param reqHeight requested height, 0 or less for no limit
+	 * @return holder with the bitmap (null if the data can't be decoded) and its sampling info,
+	 * without the source
+	 */
+	public static BitmapHolder decode(byte[] data, int length, int reqWidth, int reqHeight)
+	{
+		return decode(data, length, reqWidth, reqHeight, null);
+	}
+	
+	/**
+	 * Decodes the image like {@link #decode(byte[], int, int, int)}, into a bitmap from the pool
+	 * if there is one that fits. Decoded bitmaps are mutable, so they can be pooled later.
+	 * @param pool pool to take the bitmap from, or null
+	 */
+	public static BitmapHolder decode(byte[] data, int length, int reqWidth, int reqHeight, BitmapPool pool)
+	{
+		BitmapHolder holder = new BitmapHolder();
+		
+		// decoding into existing bitmaps is supported since Honeycomb
+		boolean reuse = pool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+		
+		if(!reuse && reqWidth <= 0 && reqHeight <= 0)
+		{
+			holder.bitmap = BitmapFactory.decodeByteArray(data, 0, length);
+			if(holder.bitmap != null)
+			{
+				holder.sourceWidth = holder.bitmap.getWidth();
+				holder.sourceHeight = holder.bitmap.getHeight();
+			}
+			return holder;
+		}
+		
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, length, options);
+		
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return holder;
+		
+		prepareDecode(holder, options, reqWidth, reqHeight, reuse ? pool : null);
+		
+		try {
+			holder.bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+		catch (IllegalArgumentException e) {
+			// the decoder didn't accept the pooled bitmap
+			if(options.inBitmap == null)
+				throw e;
+			
+			pool.put(options.inBitmap);
+			options.inBitmap = null;
+			holder.bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+		return holder;
+	}
+	
+	/**
+	 * Decodes the image from a stream as it is read, like {@link #decode(byte[], int, int, int, BitmapPool)},
+	 * without buffering the whole encoded image. The stream can't be read twice, so when the
+	 * image can't be decoded this way, e.g. its headers are too long to be read ahead or the
+	 * pooled bitmap doesn't fit, the holder has no bitmap and the caller has to decode it again
+	 * from a copy of the data. The stream is not read to its end.
+	 * @param pool pool to take the bitmap from, or null
+	 */
+	public static BitmapHolder decodeStream(InputStream input, int reqWidth, int reqHeight, BitmapPool pool)
+	{
+		BitmapHolder holder = new BitmapHolder();
+		
+		// the headers are read twice, first for the bounds
+		BufferedInputStream buffered = new BufferedInputStream(input, STREAM_BUFFER_SIZE);
+		buffered.mark(BOUNDS_READ_LIMIT);
+		
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(buffered, null, options);
+		
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return holder;
+		
+		try {
+			buffered.reset();
+		}
+		catch (IOException e) {
+			// the headers were longer than the read-ahead limit
+			return holder;
+		}
+		
+		boolean reuse = pool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+		prepareDecode(holder, options, reqWidth, reqHeight, reuse ? pool : null);
+		
+		try {
+			holder.bitmap = BitmapFactory.decodeStream(buffered, null, options);
+		}
+		catch (IllegalArgumentException e) {
+			// the decoder didn't accept the pooled bitmap, and the stream was read past the mark
+			if(options.inBitmap == null)
+				throw e;
+			
+			pool.put(options.inBitmap);
+		}
+		return holder;
+	}
+	
+	/**
+	 * Decodes a tiny preview of the image, sampled down so it fits in the given size (roughly,
+	 * at most twice as big), in RGB_565. Heavily sampled decodes are fast, JPEG decoders scale
+	 * down while decoding. Previews are not taken from a pool, they are short lived.
+	 * @param maxSize size the preview should fit in
+	 * @return the preview, or null if the data can't be decoded
+	 */
+	public static Bitmap decodePreview(byte[] data, int length, int maxSize)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, length, options);
+		
+		if(!preparePreview(options, maxSize))
+			return null;
+		return BitmapFactory.decodeByteArray(data, 0, length, options);
+	}
+	
+	/**
+	 * Decodes a tiny preview of an image file, see {@link #decodePreview(byte[], int, int)}.
+	 */
+	public static Bitmap decodePreview(String path, int maxSize)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		
+		if(!preparePreview(options, maxSize))
+			return null;
+		return BitmapFactory.decodeFile(path, options);
+	}
+	
+	/**
+	 * @return false if the bounds are not known, i.e. the image can't be decoded
+	 */
+	private static boolean preparePreview(BitmapFactory.Options options, int maxSize)
+	{
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return false;
+		
+		int sampleSize = 1;
+		while(Math.max(options.outWidth, options.outHeight) / sampleSize > maxSize * 2)
+		{
+			sampleSize *= 2;
+		}
+		
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		return true;
+	}
+	
+	/**
+	 * Sets up sampling, and decoding into a pooled bitmap, once the bounds are known.
+	 * @param pool pool to take the bitmap from, null if bitmaps can't be reused
+	 */
+	private static void prepareDecode(BitmapHolder holder, BitmapFactory.Options options, int reqWidth, int reqHeight,
+			BitmapPool pool)
+	{
+		holder.sourceWidth = options.outWidth;
+		holder.sourceHeight = options.outHeight;
+		holder.sampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+		
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = holder.sampleSize;
+		
+		if(pool != null)
+		{
+			options.inMutable = true;
+			
+			// before KitKat, only images decoded without sampling can be decoded into a bitmap
+			if(holder.sampleSize == 1 || Build.VERSION.SDK_INT >= KITKAT)
+			{
+				options.inBitmap = pool.get(options.outWidth / holder.sampleSize,
+						options.outHeight / holder.sampleSize, Bitmap.Config.ARGB_8888);
+			}
+		}
+	}
+	
+	/**
+	 * Scales the bitmap down (or up) with filtering, into a bitmap from the pool if there is one
+	 * of the target size.
+	 * @param pool pool to take the target bitmap from, or null
+	 * @return new mutable bitmap, with alpha only if the source has it
+	 */
+	public static Bitmap scale(Bitmap source, int width, int height, BitmapPool pool)
+	{
+		Bitmap target = obtainBitmap(width, height, pool);
+		
+		Canvas canvas = new Canvas(target);
+		canvas.drawBitmap(source, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+		// opaque images are encoded as JPEG then, see encode()
+		target.setHasAlpha(source.hasAlpha());
+		return target;
+	}
+	
+	/**
+	 * @param pool pool to take the bitmap from, or null
+	 * @return a transparent mutable ARGB_8888 bitmap, from the pool if there is one of the size;
+	 * it has alpha, callers drawing an opaque image into it should
+	 * {@link Bitmap#setHasAlpha(boolean) clear} that
+	 */
+	public static Bitmap obtainBitmap(int width, int height, BitmapPool pool)
+	{
+		Bitmap bitmap = pool != null ? pool.get(width, height, Bitmap.Config.ARGB_8888) : null;
+		if(bitmap == null)
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		else
+		{
+			// may have been cleared by its previous user
+			bitmap.setHasAlpha(true);
+			bitmap.eraseColor(Color.TRANSPARENT);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Encodes the bitmap, as PNG if it has transparency, otherwise as JPEG.
+	 * @return encoded bytes, or null if it couldn't be encoded
+	 */
+	public static byte[] encode(Bitmap bitmap)
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream(bitmap.getWidth() * bitmap.getHeight() / 4);
+		return encode(bitmap, stream) ? stream.toByteArray() : null;
+	}
+	
+	/**
+	 * Encodes the bitmap into the stream, see {@link #encode(Bitmap)}.
+	 * @return true if it was encoded
+	 */
+	public static boolean encode(Bitmap bitmap, OutputStream stream)
+	{
+		return bitmap.hasAlpha()
+				? bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream)
+				: bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream);
+	}
+	
+	/**
+	 * @param width width of the full image
+	 * @param height height of the full image
+	 * @param reqWidth requested width, 0 or less for no limit
+	 * @param reqHeight requested height, 0 or less for no limit
+	 * @return the largest power of two that keeps the sampled image at least as big as requested
+	 */
+	public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight)
+	{
+		if(reqWidth <= 0 && reqHeight <= 0)
+			return 1;
+		
+		int sampleSize = 1;
+		while(fits(width / (sampleSize * 2), reqWidth) && fits(height / (sampleSize * 2), reqHeight))
+		{
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+	
+	private static boolean fits(int size, int reqSize)
+	{
+		return size >= Math.max(reqSize, 1);
+	}
+}
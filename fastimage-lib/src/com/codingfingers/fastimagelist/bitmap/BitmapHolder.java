@@ -15,9 +15,42 @@
 
 package com.codingfingers.fastimagelist.bitmap;
 
+import com.codingfingers.fastimagelist.cache.CacheValidators;
+
 import android.graphics.Bitmap;
 
 public class BitmapHolder {
 	public Bitmap bitmap;
 	public byte [] source;
+	
+	/**
+	 * size of the full image, 0 if unknown
+	 */
+	public int sourceWidth;
+	public int sourceHeight;
+	
+	/**
+	 * inSampleSize the bitmap was decoded with
+	 */
+	public int sampleSize = 1;
+	
+	/**
+	 * HTTP validators of the source, stored with it on disk, or null
+	 */
+	public CacheValidators validators;
+	
+	/**
+	 * set by the cache, under its lock, once the holder left memory; from then on its bitmap may
+	 * be pooled, and decoded into again
+	 */
+	public boolean evicted;
+	
+	/**
+	 * @return size of the decoded bitmap in bytes, or 0 if there is no bitmap
+	 */
+	public int getByteCount() {
+		if(bitmap == null)
+			return 0;
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of bitmaps no longer in use, to be decoded into again (BitmapFactory.Options.inBitmap)
+ * instead of allocating new ones. Bitmaps are matched by dimensions and config. The pool is
+ * bounded by the total size of pooled bitmaps, least recently pooled ones are dropped when it
+ * is full. Dropped bitmaps are left to the garbage collector rather than recycled, as a bitmap
+ * given out without being retained may still be drawn.
+ */
+public class BitmapPool {
+
+	private final Map<SizeKey, List<Bitmap>> bitmapsBySize = new HashMap<SizeKey, List<Bitmap>>();
+	
+	/**
+	 * key to look up the map with, reused under the pool's lock so lookups don't allocate
+	 */
+	private final SizeKey probe = new SizeKey();
+	
+	/**
+	 * all pooled bitmaps, least recently pooled first
+	 */
+	private final LinkedList<Bitmap> lru = new LinkedList<Bitmap>();
+	
+	private long maxSize;
+	private long size;
+	
+	/**
+	 * @param maxSize max total size of pooled bitmaps in bytes, 0 disables pooling
+	 */
+	public BitmapPool(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Takes a bitmap out of the pool.
+	 * @return a pooled bitmap of exactly this size and config, or null. Its content is undefined.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		List<Bitmap> bitmaps = getBitmaps(width, height, config);
+		if(bitmaps == null || bitmaps.isEmpty())
+			return null;
+		
+		Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+		lru.remove(bitmap);
+		size -= getSize(bitmap);
+		return bitmap;
+	}
+	
+	/**
+	 * Puts a bitmap which is no longer used anywhere into the pool. Bitmaps that can't be
+	 * decoded into (immutable or recycled) are ignored.
+	 */
+	public synchronized void put(Bitmap bitmap)
+	{
+		if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null)
+			return;
+		
+		long bitmapSize = getSize(bitmap);
+		if(bitmapSize > maxSize)
+			return;
+		
+		List<Bitmap> bitmaps = getBitmaps(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		if(bitmaps == null)
+		{
+			bitmaps = new ArrayList<Bitmap>(4);
+			bitmapsBySize.put(new SizeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmaps);
+		}
+		else
+		{
+			for(Bitmap pooled : bitmaps)
+			{
+				// already pooled
+				if(pooled == bitmap)
+					return;
+			}
+		}
+		
+		bitmaps.add(bitmap);
+		lru.addLast(bitmap);
+		size += bitmapSize;
+		
+		trimToSize(maxSize);
+	}
+	
+	private void trimToSize(long targetSize)
+	{
+		while(size > targetSize && !lru.isEmpty())
+		{
+			Bitmap eldest = lru.removeFirst();
+			getBitmaps(eldest.getWidth(), eldest.getHeight(), eldest.getConfig()).remove(eldest);
+			size -= getSize(eldest);
+			// not recycled, it may still be drawn by a view that got it without retaining it
+		}
+	}
+	
+	/**
+	 * Drops all pooled bitmaps.
+	 */
+	public synchronized void clear()
+	{
+		trimToSize(0);
+		bitmapsBySize.clear();
+	}
+	
+	/**
+	 * @return total size of pooled bitmaps in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+	
+	public synchronized long getMaxSize()
+	{
+		return maxSize;
+	}
+	
+	/**
+	 * @param maxSize max total size of pooled bitmaps in bytes, 0 disables pooling
+	 */
+	public synchronized void setMaxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+	
+	private static long getSize(Bitmap bitmap)
+	{
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+	private List<Bitmap> getBitmaps(int width, int height, Bitmap.Config config)
+	{
+		probe.width = width;
+		probe.height = height;
+		probe.config = config;
+		return bitmapsBySize.get(probe);
+	}
+	
+	private static final class SizeKey
+	{
+		int width;
+		int height;
+		Bitmap.Config config;
+		
+		SizeKey()
+		{
+		}
+		
+		SizeKey(int width, int height, Bitmap.Config config)
+		{
+			this.width = width;
+			this.height = height;
+			this.config = config;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof SizeKey))
+				return false;
+			SizeKey other = (SizeKey) o;
+			return width == other.width && height == other.height && config == other.config;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (width * 31 + height) * 31 + config.ordinal();
+		}
+	}
+}
@@ -16,19 +16,39 @@
 
 package com.codingfingers.fastimagelist.cache;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import com.codingfingers.fastimagelist.bitmap.BitmapDecoder;
 import com.codingfingers.fastimagelist.bitmap.BitmapHolder;
-import com.google.common.collect.MapMaker;
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+import com.codingfingers.fastimagelist.metrics.ImageMetrics;
+import com.codingfingers.fastimagelist.transform.Transformation;
+import com.codingfingers.fastimagelist.util.ByteArrayPool;
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.codingfingers.fastimagelist.util.TeeInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Environment;
 
 /**
  * 
@@ -36,129 +56,1089 @@ import android.graphics.BitmapFactory;
  */
 public class FastImageCache extends AbstractCache<String, BitmapHolder> {
 
-		private static final int INITIAL_IN_MEMORY_COUNT = 20;
+		private static final String TAG = "FastImageCache";
+		
+		public static final int DISK_CACHE_INTERNAL = 0;
+		public static final int DISK_CACHE_SDCARD = 1;
+		
+		/**
+		 * default in-memory budget, as a fraction of the max heap size
+		 */
+		private static final float DEFAULT_MEMORY_CACHE_FRACTION = 0.125f;
 
 		private static FastImageCache _instance;
 		
-		private static BitmapHolder lastHits[] = new BitmapHolder[INITIAL_IN_MEMORY_COUNT];
-		private static int lastHitCounter = 0;
-		private static int mInMemoryCount = INITIAL_IN_MEMORY_COUNT;
+		private static long mMemoryCacheSize = memoryCacheSizeForFraction(DEFAULT_MEMORY_CACHE_FRACTION);
+		
+		/**
+		 * by default the bitmap pool may hold a quarter of the in-memory budget
+		 */
+		private static long mBitmapPoolSize = mMemoryCacheSize / 4;
+		
+		/**
+		 * bitmaps evicted from memory are decoded into again
+		 */
+		private final BitmapPool bitmapPool = new BitmapPool(mBitmapPoolSize);
+		
+		/**
+		 * reference counts of bitmaps shown in views, see {@link #retainBitmap(Bitmap)}; weak, so
+		 * bitmaps of views that were dropped without releasing them are not leaked (Bitmap uses
+		 * identity equality). Released bitmaps keep their entry at 0, so showing them again
+		 * allocates nothing.
+		 */
+		private final Map<Bitmap, Integer> bitmapsInUse = new WeakHashMap<Bitmap, Integer>();
+		
+		/**
+		 * bitmaps evicted from memory while in use, pooled once released
+		 */
+		private final Set<Bitmap> evictedInUse = Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+		
+		/**
+		 * keys of the untransformed variants held in memory, by url, see {@link #getBitmap(String, int, int)}
+		 */
+		private final ConcurrentMap<String, Set<String>> variantsInMemory = new ConcurrentHashMap<String, Set<String>>();
+		
+		/**
+		 * encodes bitmaps put by {@link #putEncoded} to disk, off the decode threads
+		 */
+		private final ExecutorService encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "FastImageCache-encoder");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
 		
 	    private FastImageCache() {
-	        super("FastImageCache", 25, 60*24*160, 20);
+	        super("FastImageCache", 25, mMemoryCacheSize, 60*24*160, 20);
 	    }
 	    
-	    public static FastImageCache getInstance(Context ctx)
+	    public static synchronized FastImageCache getInstance(Context ctx)
 	    {
 	    	if(_instance == null)
 	    	{
 	    		_instance = new FastImageCache();
 	    		_instance.setDiskCacheEnabled("imagecache");
-	    		_instance.enableDiskCache(ctx, AbstractCache.DISK_CACHE_SDCARD);
+	    		_instance.enableDiskCache(ctx, DISK_CACHE_SDCARD);
 	    	}
 	    	
 	    	return _instance;
 	    }
+	    
+	    /**
+	     * Enable caching to the phone's internal storage or SD card.
+	     * 
+	     * @param storageDevice where to store the cached files, either {@link #DISK_CACHE_INTERNAL} or
+	     *            {@link #DISK_CACHE_SDCARD}
+	     * @return whether disk caching is enabled
+	     */
+	    public boolean enableDiskCache(Context context, int storageDevice) {
+	        Context appContext = context.getApplicationContext();
+	        
+	        if (storageDevice == DISK_CACHE_SDCARD
+	                && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+	            // SD-card available
+	            return enableDiskCache(Environment.getExternalStorageDirectory().getAbsolutePath()
+	                    + "/Android/data/" + appContext.getPackageName() + "/cache");
+	        }
+	        
+	        File internalCacheDir = appContext.getCacheDir();
+	        // apparently on some configurations this can come back as null
+	        return enableDiskCache(internalCacheDir != null ? internalCacheDir.getAbsolutePath() : null);
+	    }
 
-	    public synchronized void removeAllWithPrefix(String urlPrefix) {
+	    public void removeAllWithPrefix(String urlPrefix) {
 	        CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
 	    }
+	    
+	    /**
+	     * Removes the image, and all its variants if the key is an url.
+	     */
+	    @Override
+	    public BitmapHolder remove(Object key) {
+	    	BitmapHolder removed = super.remove(key);
+	    	
+	    	String url = CacheHelper.getUrlFromKey((String) key);
+	    	if(url.equals(key))
+	    	{
+	    		removeAllWithPrefix(CacheHelper.getVariantKeyPrefix(url));
+	    	}
+	    	return removed;
+	    }
 
 	    @Override
 	    public String getFileNameForKey(String imageUrl) {
 	        return CacheHelper.getFileNameFromUrl(imageUrl);
 	    }
 	    
+	    /**
+	     * In-memory entries are weighted by the size of their decoded bitmap.
+	     */
 	    @Override
-	    protected MapMaker createMapMaker(int initialCapacity, long expirationInMinutes,
-	            int maxConcurrentThreads)
-	    {
-			MapMaker createMapMaker = super.createMapMaker(initialCapacity, expirationInMinutes, maxConcurrentThreads);
-			createMapMaker.weakValues();
-			return createMapMaker;
+	    protected int sizeOf(String key, BitmapHolder value) {
+	    	return value.getByteCount();
 	    }
 	    
+	    /**
+	     * Reads the whole file straight into a pooled buffer (no stream buffering, no copy) and
+	     * decodes it. The source bytes are not kept, they are already on disk.
+	     */
 	    @Override
 	    protected BitmapHolder readValueFromDisk(File file) throws IOException {
-	        BufferedInputStream istream = new BufferedInputStream(new FileInputStream(file));
-	        long fileSize = file.length();
-	        if (fileSize > Integer.MAX_VALUE) {
-	            throw new IOException("Cannot read files larger than " + Integer.MAX_VALUE + " bytes");
-	        }
-
-	        int imageDataLength = (int) fileSize;
+	        return readValueFromDisk(file, 0, 0);
+	    }
+	    
+	    /**
+	     * @param reqWidth requested width, 0 or less for the full image
+	     * @param reqHeight requested height, 0 or less for the full image
+	     */
+	    protected BitmapHolder readValueFromDisk(File file, int reqWidth, int reqHeight) throws IOException {
+	        RandomAccessFile input = new RandomAccessFile(file, "r");
+	        try {
+	            long fileSize = input.length();
+	            if (fileSize > Integer.MAX_VALUE) {
+	                throw new IOException("Cannot read files larger than " + Integer.MAX_VALUE + " bytes");
+	            }
 
-	        BitmapHolder holder = new BitmapHolder();
-	        
-	        byte[] imageData = new byte[imageDataLength];
-	        istream.read(imageData, 0, imageDataLength);
-	        istream.close();
+	            int imageDataLength = (int) fileSize;
+	            byte[] imageData = ByteArrayPool.getShared().acquire(imageDataLength);
+	            try {
+	                // unlike read(), readFully doesn't return short
+	                input.readFully(imageData, 0, imageDataLength);
 
-	        holder.source = imageData;
-	        holder.bitmap = createBitmap(imageData);			
-			
-	        return holder;
+	                return decode(imageData, imageDataLength, reqWidth, reqHeight);
+	            } finally {
+	                ByteArrayPool.getShared().release(imageData);
+	            }
+	        } finally {
+	            input.close();
+	        }
 	    }
 	    
 	    protected Bitmap createBitmap(byte[] imageData)
 	    {
-	    	return BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
+	    	return createBitmap(imageData, imageData.length);
+	    }
+	    
+	    /**
+	     * Decodes the full image, into a pooled bitmap if one fits.
+	     */
+	    protected Bitmap createBitmap(byte[] imageData, int length)
+	    {
+	    	long start = getMetrics().startTimer();
+	    	try {
+	    		return BitmapDecoder.decode(imageData, length, 0, 0, bitmapPool).bitmap;
+	    	} finally {
+	    		getMetrics().recordDecode(start);
+	    	}
+	    }
+	    
+	    /**
+	     * Decodes the image downsampled to the requested size, see {@link BitmapDecoder#decode}.
+	     */
+	    protected BitmapHolder decode(byte[] imageData, int length, int reqWidth, int reqHeight)
+	    {
+	    	long start = getMetrics().startTimer();
+	    	try {
+	    		return BitmapDecoder.decode(imageData, length, reqWidth, reqHeight, bitmapPool);
+	    	} finally {
+	    		getMetrics().recordDecode(start);
+	    	}
+	    }
+	    
+	    /**
+	     * Marks a bitmap as used, e.g. shown in a view. Bitmaps evicted from memory go to the
+	     * bitmap pool to be decoded into again, unless they are in use. Only bitmaps already
+	     * retained, or not cached in memory, can be retained safely this way; bitmaps got from the
+	     * cache may be pooled before they are retained, get them with {@link #getBitmapAndRetain}.
+	     */
+	    public void retainBitmap(Bitmap bitmap) {
+	    	if(bitmap == null)
+	    		return;
+	    	
+	    	synchronized (bitmapsInUse) {
+	    		Integer count = bitmapsInUse.get(bitmap);
+	    		bitmapsInUse.put(bitmap, count == null ? 1 : count + 1);
+	    	}
+	    }
+	    
+	    /**
+	     * Releases a bitmap retained with {@link #retainBitmap(Bitmap)}.
+	     */
+	    public void releaseBitmap(Bitmap bitmap) {
+	    	if(bitmap == null)
+	    		return;
+	    	
+	    	synchronized (bitmapsInUse) {
+	    		Integer count = bitmapsInUse.get(bitmap);
+	    		if(count == null || count == 0)
+	    			return;
+	    		
+	    		bitmapsInUse.put(bitmap, count - 1);
+	    		if(count > 1 || !evictedInUse.remove(bitmap))
+	    			return;
+	    	}
+	    	
+	    	bitmapPool.put(bitmap);
+	    }
+	    
+	    /**
+	     * Retains the bitmap of a holder got from memory, unless the holder left memory since; its
+	     * bitmap may be in the bitmap pool then. Eviction checks the retain count under the same
+	     * lock, so a bitmap retained here is never pooled.
+	     * @return true if the bitmap was retained
+	     */
+	    private boolean retainCached(BitmapHolder holder) {
+	    	synchronized (bitmapsInUse) {
+	    		if (holder.evicted) {
+	    			return false;
+	    		}
+	    		Integer count = bitmapsInUse.get(holder.bitmap);
+	    		bitmapsInUse.put(holder.bitmap, count == null ? 1 : count + 1);
+	    		return true;
+	    	}
+	    }
+	    
+	    @Override
+	    protected BitmapHolder putInMemory(String key, BitmapHolder value) {
+	    	if(!CacheHelper.isTransformedKey(key))
+	    	{
+	    		String url = CacheHelper.getUrlFromKey(key);
+	    		Set<String> keys = variantsInMemory.get(url);
+	    		if(keys == null)
+	    		{
+	    			Set<String> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	    			keys = variantsInMemory.putIfAbsent(url, newKeys);
+	    			if(keys == null)
+	    				keys = newKeys;
+	    		}
+	    		keys.add(key);
+	    	}
+	    	return super.putInMemory(key, value);
+	    }
+	    
+	    @Override
+	    protected void onRemovedFromMemory(String key, BitmapHolder value) {
+	    	if(!containsKeyInMemory(key))
+	    	{
+	    		String url = CacheHelper.getUrlFromKey(key);
+	    		Set<String> keys = variantsInMemory.get(url);
+	    		if(keys != null)
+	    		{
+	    			keys.remove(key);
+	    			if(keys.isEmpty())
+	    				variantsInMemory.remove(url, keys);
+	    		}
+	    	}
+	    	
+	    	Bitmap bitmap = value.bitmap;
+	    	if(bitmap == null)
+	    		return;
+	    	
+	    	synchronized (bitmapsInUse) {
+	    		value.evicted = true;
+	    		Integer count = bitmapsInUse.get(bitmap);
+	    		if(count != null && count > 0)
+	    		{
+	    			evictedInUse.add(bitmap);
+	    			return;
+	    		}
+	    	}
+	    	
+	    	bitmapPool.put(bitmap);
 	    }
 
-	    public synchronized Bitmap getBitmap(Object elementKey) {
+	    /**
+	     * Gets the image as cached. The bitmap is not retained: once it leaves memory it may be
+	     * pooled and decoded into, use {@link #getBitmapAndRetain} to keep it.
+	     */
+	    public Bitmap getBitmap(Object elementKey) {
+	        BitmapHolder holder = getOriginal(elementKey);
+	        return holder != null ? holder.bitmap : null;
+	    }
+	    
+	    /**
+	     * Gets the image decoded at the requested size (or sampled down less, see
+	     * {@link BitmapDecoder#decode}). Each size is cached in memory separately, as a variant of
+	     * the image. A missing variant is made by scaling a larger one cached in memory, or by
+	     * decoding its own file on disk, or by decoding the original image from disk. The bitmap
+	     * is not retained, see {@link #getBitmap(Object)}.
+	     * @param reqWidth requested width, 0 or less for the full image
+	     * @param reqHeight requested height, 0 or less for the full image
+	     */
+	    public Bitmap getBitmap(String url, int reqWidth, int reqHeight) {
+	        BitmapHolder holder = getVariant(url, reqWidth, reqHeight);
+	        return holder != null ? holder.bitmap : null;
+	    }
+	    
+	    /**
+	     * Gets the image decoded at the requested size (see {@link #getBitmap(String, int, int)})
+	     * and transformed. Transformed images are cached in memory and on disk under their own
+	     * keys, so the transformation runs once per image. The bitmap is not retained, see
+	     * {@link #getBitmap(Object)}.
+	     * @param transformation transformation to apply, or null
+	     */
+	    public Bitmap getBitmap(String url, int reqWidth, int reqHeight, Transformation transformation) {
+	    	BitmapHolder holder = getTransformed(url, reqWidth, reqHeight, transformation);
+	    	return holder != null ? holder.bitmap : null;
+	    }
+	    
+	    /**
+	     * Gets the image like {@link #getBitmap(String, int, int, Transformation)}, retained for the
+	     * caller, who releases it with {@link #releaseBitmap(Bitmap)}. Retained bitmaps stay out of
+	     * the bitmap pool even if they leave memory.
+	     * @return the bitmap, or null if the image is not cached
+	     */
+	    public Bitmap getBitmapAndRetain(String url, int reqWidth, int reqHeight, Transformation transformation) {
+	    	for (int attempt = 0; attempt < 2; attempt++) {
+	    		BitmapHolder holder = getTransformed(url, reqWidth, reqHeight, transformation);
+	    		if (holder == null) {
+	    			return null;
+	    		}
+	    		if (retainCached(holder)) {
+	    			return holder.bitmap;
+	    		}
+	    		// evicted since, e.g. by other threads filling the cache
+	    	}
+	    	
+	    	// doesn't stay in memory, e.g. too big for it
+	    	return decodeUncached(url, reqWidth, reqHeight, transformation);
+	    }
+	    
+	    /**
+	     * Gets the transformed image only if it is in memory, see
+	     * {@link #getBitmap(String, int, int, Transformation)}. The bitmap is not retained.
+	     */
+	    public Bitmap getBitmapFromMemory(String url, int reqWidth, int reqHeight, Transformation transformation) {
+	    	String key = CacheHelper.getVariantKey(url, reqWidth, reqHeight,
+	    			transformation != null ? transformation.getKey() : null);
+	    	BitmapHolder holder = getFromMemory(key);
+	    	return holder != null ? releaseSource(key, holder) : null;
+	    }
+	    
+	    /**
+	     * Gets the transformed image only if it is in memory, retained like by
+	     * {@link #getBitmapAndRetain}.
+	     */
+	    public Bitmap getBitmapFromMemoryAndRetain(String url, int reqWidth, int reqHeight, Transformation transformation) {
+	    	String key = CacheHelper.getVariantKey(url, reqWidth, reqHeight,
+	    			transformation != null ? transformation.getKey() : null);
+	    	BitmapHolder holder = getFromMemory(key);
+	    	if (holder == null || holder.bitmap == null || !retainCached(holder)) {
+	    		return null;
+	    	}
+	    	return releaseSource(key, holder);
+	    }
+	    
+	    private BitmapHolder getOriginal(Object elementKey) {
 	        BitmapHolder holder = super.get(elementKey);
+	        if (holder == null || holder.bitmap == null) {
+	            return null;
+	        }
 	        
+	        releaseSource(elementKey, holder);
+	        return holder;
+	    }
+	    
+	    /**
+	     * @return holder of the variant, see {@link #getBitmap(String, int, int)}, or null
+	     */
+	    private BitmapHolder getVariant(String url, int reqWidth, int reqHeight) {
+	    	String key = CacheHelper.getVariantKey(url, reqWidth, reqHeight, null);
+	    	if (key.equals(url)) {
+	    		return getOriginal(url);
+	    	}
+	    	
+	        ImageMetrics metrics = getMetrics();
+	        long start = metrics.startTimer();
+	        BitmapHolder holder = getFromMemory(key);
 	        if (holder == null) {
-	            return null;
+	        	BitmapHolder scaled = getScaledFromMemory(url, key, reqWidth, reqHeight);
+	        	if (scaled != null) {
+	        		metrics.recordLookup(start);
+	        		return scaled;
+	        	}
+	        	
+	        	synchronized (getDiskLock(key)) {
+	        		// another thread may have decoded it while we were waiting
+	        		holder = getFromMemory(key);
+	        		if (holder == null) {
+	        			holder = readVariant(url, key, reqWidth, reqHeight);
+	        		}
+	        	}
 	        }
+	        metrics.recordLookup(start);
 	        
-	        if(lastHits[lastHitCounter]!=holder)
-	        {
-		        lastHitCounter ++;
-		        if(lastHitCounter>mInMemoryCount-1)
-		        	lastHitCounter=0;
-		        lastHits[lastHitCounter] = holder;
+	        if (holder == null || holder.bitmap == null) {
+	            return null;
 	        }
 	        
-	        holder.source = null;
+	        releaseSource(key, holder);
+	        return holder;
+	    }
+	    
+	    /**
+	     * @return holder of the transformed image, see
+	     * {@link #getBitmap(String, int, int, Transformation)}, or null
+	     */
+	    private BitmapHolder getTransformed(String url, int reqWidth, int reqHeight, Transformation transformation) {
+	    	if (transformation == null) {
+	    		return getVariant(url, reqWidth, reqHeight);
+	    	}
+	    	
+	    	String key = CacheHelper.getVariantKey(url, reqWidth, reqHeight, transformation.getKey());
+	    	ImageMetrics metrics = getMetrics();
+	    	long start = metrics.startTimer();
+	    	BitmapHolder holder = getFromMemory(key);
+	    	if (holder == null) {
+	    		synchronized (getDiskLock(key)) {
+	    			holder = getFromMemory(key);
+	    			if (holder == null) {
+	    				holder = readTransformed(url, key);
+	    			}
+	    		}
+	    	}
+	    	metrics.recordLookup(start);
+	    	
+	    	if (holder == null) {
+	    		// not under the disk lock, getting the untransformed image takes other locks
+	    		return transform(url, key, reqWidth, reqHeight, transformation);
+	    	}
+	    	
+	    	releaseSource(key, holder);
+	    	return holder;
+	    }
+	    
+	    /**
+	     * Decodes the image for a caller when it doesn't stay in memory long enough to be retained.
+	     * The bitmap is not cached, and retained for the caller like by {@link #getBitmapAndRetain}.
+	     * @return the bitmap, or null if the image is not cached
+	     */
+	    private Bitmap decodeUncached(String url, int reqWidth, int reqHeight, Transformation transformation) {
+	    	BitmapHolder holder = null;
+	    	try {
+	    		BitmapHolder pending = getPendingWrite(url);
+	    		byte[] source = pending != null ? pending.source : null;
+	    		if (source != null) {
+	    			holder = decode(source, source.length, reqWidth, reqHeight);
+	    		} else {
+	    			File original = getFileForKey(url);
+	    			if (original != null) {
+	    				holder = readValueFromDisk(original, reqWidth, reqHeight);
+	    			}
+	    		}
+	    	} catch (IOException e) {
+	    		FastImageLog.w(TAG, "Failed reading from DISK", e);
+	    		return null;
+	    	}
+	    	if (holder == null || holder.bitmap == null) {
+	    		return null;
+	    	}
+	    	
+	    	Bitmap bitmap = holder.bitmap;
+	    	if (transformation != null) {
+	    		long start = getMetrics().startTimer();
+	    		bitmap = transformation.transform(bitmap, bitmapPool);
+	    		getMetrics().recordTransform(start);
+	    	}
+	    	retainBitmap(bitmap);
+	    	return bitmap;
+	    }
+	    
+	    /**
+	     * Gets a tiny preview of an image, to show while the image itself is read from disk and
+	     * decoded. Uses the thumbnail embedded in the EXIF data of JPEG files if there is one,
+	     * otherwise decodes the image heavily sampled down, see {@link BitmapDecoder#decodePreview}.
+	     * Previews are not cached, nor pooled.
+	     * @param maxSize size the preview should roughly fit in
+	     * @return the preview, or null if the image is not cached on disk
+	     */
+	    public Bitmap getPreview(String url, int maxSize) {
+	    	BitmapHolder pending = getPendingWrite(url);
+	    	if (pending != null && pending.source != null) {
+	    		return BitmapDecoder.decodePreview(pending.source, pending.source.length, maxSize);
+	    	}
+	    	
+	    	File file = getFileForKey(url);
+	    	if (file == null) {
+	    		return null;
+	    	}
+	    	
+	    	try {
+	    		ExifInterface exif = new ExifInterface(file.getPath());
+	    		if (exif.hasThumbnail()) {
+	    			byte[] thumbnail = exif.getThumbnail();
+	    			if (thumbnail != null) {
+	    				Bitmap preview = BitmapDecoder.decodePreview(thumbnail, thumbnail.length, maxSize);
+	    				if (preview != null) {
+	    					return preview;
+	    				}
+	    			}
+	    		}
+	    	} catch (IOException e) {
+	    		// not a JPEG, or evicted meanwhile
+	    	}
+	    	
+	    	return BitmapDecoder.decodePreview(file.getPath(), maxSize);
+	    }
+	    
+	    private BitmapHolder readTransformed(String url, String key) {
+	    	if (isStaleOnDisk(url)) {
+	    		// the image may have changed, it is revalidated first
+	    		return null;
+	    	}
+	    	
+	    	File file = getFileForKey(key);
+	    	if (file == null) {
+	    		getMetrics().recordDiskMiss();
+	    		return null;
+	    	}
+	    	
+	    	long start = getMetrics().startTimer();
+	    	try {
+	    		BitmapHolder holder = readValueFromDisk(file);
+	    		if (holder.bitmap == null) {
+	    			getMetrics().recordDiskMiss();
+	    			return null;
+	    		}
+	    		getMetrics().recordDiskHit(start);
+	    		putInMemory(key, holder);
+	    		return holder;
+	    	} catch (IOException e) {
+	    		// treat decoding errors as a cache miss
+	    		FastImageLog.w(TAG, "Failed reading from DISK", e);
+	    		getMetrics().recordDiskMiss();
+	    		return null;
+	    	}
+	    }
+	    
+	    private BitmapHolder transform(String url, String key, int reqWidth, int reqHeight, Transformation transformation) {
+	    	BitmapHolder sourceHolder = getVariant(url, reqWidth, reqHeight);
+	    	if (sourceHolder == null) {
+	    		return null;
+	    	}
+	    	
+	    	// keep it out of the bitmap pool while we read it
+	    	Bitmap source = sourceHolder.bitmap;
+	    	if (!retainCached(sourceHolder)) {
+	    		// evicted since, and maybe pooled already
+	    		source = decodeUncached(url, reqWidth, reqHeight, null);
+	    		if (source == null) {
+	    			return null;
+	    		}
+	    		sourceHolder = new BitmapHolder();
+	    		sourceHolder.bitmap = source;
+	    	}
+	    	Bitmap transformed;
+	    	long start = getMetrics().startTimer();
+	    	try {
+	    		transformed = transformation.transform(source, bitmapPool);
+	    	} finally {
+	    		releaseBitmap(source);
+	    		getMetrics().recordTransform(start);
+	    	}
+	    	
+	    	if (transformed == null) {
+	    		return null;
+	    	}
+	    	if (transformed == source) {
+	    		// nothing to cache, the bitmap is already cached untransformed
+	    		return sourceHolder;
+	    	}
+	    	
+	    	synchronized (getDiskLock(key)) {
+	    		BitmapHolder holder = getFromMemory(key);
+	    		if (holder != null) {
+	    			// another thread was faster
+	    			bitmapPool.put(transformed);
+	    			releaseSource(key, holder);
+	    			return holder;
+	    		}
+	    		
+	    		holder = new BitmapHolder();
+	    		holder.bitmap = transformed;
+	    		putEncoded(key, holder);
+	    		return holder;
+	    	}
+	    }
+	    
+	    /**
+	     * Makes the variant by scaling down the smallest variant in memory which is large enough.
+	     * @return holder of the variant, or null if none in memory is large enough
+	     */
+	    private BitmapHolder getScaledFromMemory(String url, String key, int reqWidth, int reqHeight) {
+	    	Set<String> keys = variantsInMemory.get(url);
+	    	if (keys == null) {
+	    		return null;
+	    	}
+	    	
+	    	String bestKey = null;
+	    	BitmapHolder best = null;
+	    	int bestSampleSize = 0;
+	    	int targetSampleSize = 0;
+	    	for (String candidateKey : keys) {
+	    		BitmapHolder candidate = getFromMemory(candidateKey);
+	    		if (candidate == null || candidate.bitmap == null) {
+	    			continue;
+	    		}
+	    		
+	    		int sourceWidth = candidate.sourceWidth;
+	    		int sourceHeight = candidate.sourceHeight;
+	    		int sampleSize = candidate.sampleSize;
+	    		if (candidateKey.equals(url)) {
+	    			// the full image
+	    			sourceWidth = candidate.bitmap.getWidth();
+	    			sourceHeight = candidate.bitmap.getHeight();
+	    			sampleSize = 1;
+	    		}
+	    		if (sourceWidth <= 0 || sourceHeight <= 0) {
+	    			// decoded from a variant file, the full size is not known
+	    			continue;
+	    		}
+	    		
+	    		int requiredSampleSize = BitmapDecoder.calculateInSampleSize(sourceWidth, sourceHeight, reqWidth, reqHeight);
+	    		if (sampleSize <= requiredSampleSize && sampleSize > bestSampleSize) {
+	    			bestKey = candidateKey;
+	    			best = candidate;
+	    			bestSampleSize = sampleSize;
+	    			targetSampleSize = requiredSampleSize;
+	    		}
+	    	}
+	    	
+	    	if (best == null) {
+	    		return null;
+	    	}
+	    	
+	    	if (bestSampleSize == targetSampleSize) {
+	    		// same resolution, share it
+	    		releaseSource(bestKey, best);
+	    		return best;
+	    	}
+	    	
+	    	// keep it out of the bitmap pool while we read it
+	    	if (!retainCached(best)) {
+	    		return null;
+	    	}
+	    	try {
+	    		int sourceWidth = bestKey.equals(url) ? best.bitmap.getWidth() : best.sourceWidth;
+	    		int sourceHeight = bestKey.equals(url) ? best.bitmap.getHeight() : best.sourceHeight;
+	    		
+	    		BitmapHolder variant = new BitmapHolder();
+	    		variant.sourceWidth = sourceWidth;
+	    		variant.sourceHeight = sourceHeight;
+	    		variant.sampleSize = targetSampleSize;
+	    		variant.bitmap = BitmapDecoder.scale(best.bitmap, Math.max(1, sourceWidth / targetSampleSize),
+	    				Math.max(1, sourceHeight / targetSampleSize), bitmapPool);
+	    		putInMemory(key, variant);
+	    		return variant;
+	    	} finally {
+	    		releaseBitmap(best.bitmap);
+	    	}
+	    }
+	    
+	    /**
+	     * Reads the variant from its own file, or decodes it from the original image, which is
+	     * either waiting for write-behind or on disk. Called holding the disk lock of the variant.
+	     */
+	    private BitmapHolder readVariant(String url, String key, int reqWidth, int reqHeight) {
+	    	if (isStaleOnDisk(url)) {
+	    		// the image may have changed, it is revalidated first
+	    		return null;
+	    	}
+	    	
+	    	long start = getMetrics().startTimer();
+	    	try {
+	    		File file = getFileForKey(key);
+	    		if (file != null) {
+	    			BitmapHolder holder = readValueFromDisk(file);
+	    			if (holder.bitmap != null) {
+	    				// the size of the original is not known
+	    				holder.sourceWidth = 0;
+	    				holder.sourceHeight = 0;
+	    				getMetrics().recordDiskHit(start);
+	    				putInMemory(key, holder);
+	    				return holder;
+	    			}
+	    		}
+	    		
+	    		BitmapHolder holder = null;
+	    		BitmapHolder pending = getPendingWrite(url);
+	    		if (pending != null && pending.source != null) {
+	    			holder = decode(pending.source, pending.source.length, reqWidth, reqHeight);
+	    		} else {
+	    			File original = getFileForKey(url);
+	    			if (original != null) {
+	    				holder = readValueFromDisk(original, reqWidth, reqHeight);
+	    			}
+	    		}
+	    		
+	    		if (holder == null || holder.bitmap == null) {
+	    			getMetrics().recordDiskMiss();
+	    			return null;
+	    		}
+	    		
+	    		getMetrics().recordDiskHit(start);
+	    		putVariant(key, holder);
+	    		return holder;
+	    	} catch (IOException e) {
+	    		// treat decoding errors as a cache miss
+	    		FastImageLog.w(TAG, "Failed reading from DISK", e);
+	    		getMetrics().recordDiskMiss();
+	    		return null;
+	    	}
+	    }
+	    
+	    /**
+	     * Caches a variant decoded from the original image. Variants sampled down are also stored on
+	     * disk, encoded, as decoding them is much cheaper than decoding the original again.
+	     */
+	    private void putVariant(String key, BitmapHolder holder) {
+	    	if (holder.sampleSize > 1) {
+	    		putEncoded(key, holder);
+	    	} else {
+	    		putInMemory(key, holder);
+	    	}
+	    }
+	    
+	    /**
+	     * Caches a bitmap in memory, and on disk if enabled. It is encoded to disk by the encoder
+	     * thread, not by the caller; if it leaves memory before that, it is not written at all.
+	     */
+	    private void putEncoded(final String key, final BitmapHolder holder) {
+	    	putInMemory(key, holder);
+	    	if (!isDiskCacheEnabled()) {
+	    		return;
+	    	}
+	    	
+	    	// keep it out of the bitmap pool until written
+	    	retainBitmap(holder.bitmap);
+	    	encoder.execute(new Runnable() {
+	    		@Override
+	    		public void run() {
+	    			try {
+	    				synchronized (getDiskLock(key)) {
+	    					boolean evicted;
+	    					synchronized (bitmapsInUse) {
+	    						evicted = holder.evicted;
+	    					}
+	    					// not written once removed or replaced, e.g. as the image changed
+	    					if (!evicted)
+	    						putOnDisk(key, holder);
+	    				}
+	    			} finally {
+	    				releaseBitmap(holder.bitmap);
+	    			}
+	    		}
+	    	});
+	    }
+	    
+	    /**
+	     * Also waits for the bitmaps put so far to be encoded to disk.
+	     */
+	    @Override
+	    public void flush() {
+	    	super.flush();
+	    	try {
+	    		encoder.submit(new Runnable() {
+	    			@Override
+	    			public void run() {
+	    			}
+	    		}).get();
+	    	} catch (InterruptedException e) {
+	    		Thread.currentThread().interrupt();
+	    	} catch (ExecutionException e) {
+	    		// the task does nothing
+	    	}
+	    }
+	    
+	    private Bitmap releaseSource(Object elementKey, BitmapHolder holder) {
+	        // the source is still needed until write-behind persisted it
+	        if(!isWritePending(elementKey))
+	        	holder.source = null;
 	        return holder.bitmap;
 	    }
 	    
 	    @Override
-		public synchronized BitmapHolder put(String key, BitmapHolder value) {
+		public BitmapHolder put(String key, BitmapHolder value) {
 			if(value.bitmap == null && value.source != null)
 			{
-				value.bitmap = BitmapFactory.decodeByteArray(value.source, 0, value.source.length);
+				value.bitmap = createBitmap(value.source);
 			}
 	    	return super.put(key, value);
 		}
 
-		public synchronized Bitmap putWithSource(String key, byte[] value) {
+		/**
+		 * Caches downloaded bytes, and the image decoded from them.
+		 * @return the decoded bitmap, retained for the caller like by {@link #getBitmapAndRetain},
+		 * or null if it couldn't be decoded
+		 */
+		public Bitmap putWithSource(String key, byte[] value) {
 			BitmapHolder bh = new BitmapHolder();
 			
 			bh.source = value;
 			bh.bitmap = createBitmap(value);
+			// before it is cached, it may be evicted right away
+			retainBitmap(bh.bitmap);
 			
 			this.put(key, bh);
 			
 	    	return bh.bitmap;
 		}
+		
+		/**
+		 * Caches downloaded bytes on disk, and the image decoded downsampled to the requested size
+		 * as a variant, see {@link #getBitmap(String, int, int)}.
+		 * @param reqWidth requested width, 0 or less for the full image
+		 * @param reqHeight requested height, 0 or less for the full image
+		 * @return the decoded bitmap, retained for the caller like by {@link #getBitmapAndRetain},
+		 * or null if it couldn't be decoded
+		 */
+		public Bitmap putWithSource(String url, byte[] value, int reqWidth, int reqHeight) {
+			return putWithSource(url, value, reqWidth, reqHeight, null);
+		}
+		
+		/**
+		 * Caches downloaded bytes like {@link #putWithSource(String, byte[], int, int)}, along with
+		 * their HTTP validators.
+		 * @param validators validators of the download, or null
+		 */
+		public Bitmap putWithSource(String url, byte[] value, int reqWidth, int reqHeight, CacheValidators validators) {
+			String key = CacheHelper.getVariantKey(url, reqWidth, reqHeight, null);
+			if(key.equals(url))
+			{
+				boolean replacing = isStaleOnDisk(url);
+				BitmapHolder bh = new BitmapHolder();
+				bh.source = value;
+				bh.validators = validators;
+				bh.bitmap = createBitmap(value);
+				retainBitmap(bh.bitmap);
+				
+				this.put(url, bh);
+				if(replacing)
+					removeVariants(url);
+				
+				return bh.bitmap;
+			}
+			
+			putSourceOnDisk(url, value, validators);
+			
+			BitmapHolder bh = decode(value, value.length, reqWidth, reqHeight);
+			if(bh.bitmap == null)
+				return null;
+			
+			retainBitmap(bh.bitmap);
+			putVariant(key, bh);
+			
+	    	return bh.bitmap;
+		}
 
+		/**
+		 * Caches an image read from a stream, e.g. a download, writing it to disk and decoding it
+		 * at the same time, so the encoded image is never held in memory as a whole. The image is
+		 * decoded as a variant, see {@link #getBitmap(String, int, int)}. If disk caching is
+		 * disabled, or the image is being written already, the stream is read into memory and
+		 * cached like by {@link #putWithSource(String, byte[], int, int)}.
+		 * @param decode whether to decode the image into memory, or just store it on disk
+		 * @param reqWidth requested width, 0 or less for the full image
+		 * @param reqHeight requested height, 0 or less for the full image
+		 * @return the decoded bitmap, retained for the caller like by {@link #getBitmapAndRetain},
+		 * or null if not decoded
+		 * @throws IOException if reading the stream or writing the file failed, nothing is cached then
+		 */
+		public Bitmap putFromStream(String url, InputStream input, boolean decode, int reqWidth, int reqHeight)
+				throws IOException {
+			return putFromStream(url, input, decode, reqWidth, reqHeight, null);
+		}
+		
+		/**
+		 * Caches an image read from a stream like {@link #putFromStream(String, InputStream, boolean, int, int)},
+		 * along with its HTTP validators.
+		 * @param validators validators of the download, or null
+		 */
+		public Bitmap putFromStream(String url, InputStream input, boolean decode, int reqWidth, int reqHeight,
+				CacheValidators validators) throws IOException {
+			boolean replacing = isStaleOnDisk(url);
+			DiskLruCache.Editor editor = editOnDisk(url);
+			if(editor == null)
+			{
+				byte[] source = ByteStreams.toByteArray(input);
+				if(decode)
+					return putWithSource(url, source, reqWidth, reqHeight, validators);
+				putSourceOnDisk(url, source, validators);
+				return null;
+			}
+			
+			BitmapHolder bh = null;
+			boolean committed = false;
+			OutputStream ostream = new BufferedOutputStream(new FileOutputStream(editor.getFile()));
+			try {
+				TeeInputStream tee = new TeeInputStream(input, ostream);
+				if(decode)
+					bh = BitmapDecoder.decodeStream(tee, reqWidth, reqHeight, bitmapPool);
+				
+				// the decoder may stop before the end, e.g. before trailing metadata
+				tee.drain();
+				ostream.close();
+				setMetadata(editor, validators);
+				editor.commit();
+				committed = true;
+				if(replacing)
+					removeReplaced(url);
+			} finally {
+				if(!committed)
+				{
+					Closeables.closeQuietly(ostream);
+					editor.abort();
+					if(bh != null)
+						bitmapPool.put(bh.bitmap);
+				}
+			}
+			
+			if(!decode)
+				return null;
+			
+			if(bh.bitmap == null)
+				// couldn't be decoded while streaming, decode the file
+				return getBitmapAndRetain(url, reqWidth, reqHeight, null);
+			
+			retainBitmap(bh.bitmap);
+			String key = CacheHelper.getVariantKey(url, reqWidth, reqHeight, null);
+			if(key.equals(url))
+				putInMemory(url, bh);
+			else
+				putVariant(key, bh);
+			
+			return bh.bitmap;
+		}
+		
+		/**
+		 * Stores downloaded bytes on disk without decoding them.
+		 */
+		public void putSourceOnDisk(String key, byte[] value) {
+			putSourceOnDisk(key, value, null);
+		}
+		
+		/**
+		 * Stores downloaded bytes on disk without decoding them, along with their HTTP validators.
+		 * @param validators validators of the download, or null
+		 */
+		public void putSourceOnDisk(String key, byte[] value, CacheValidators validators) {
+			boolean replacing = isStaleOnDisk(key);
+			BitmapHolder bh = new BitmapHolder();
+			bh.source = value;
+			bh.validators = validators;
+			
+			this.putOnDisk(key, bh);
+			if(replacing)
+				removeReplaced(key);
+		}
+		
+		/**
+		 * Drops what was cached of an image whose stale file on disk has just been replaced by a
+		 * new download: the old image in memory, and its variants in memory and on disk, as they
+		 * were made from the old image. Only called once the new image is stored, so a failed
+		 * download leaves the stale image to be revalidated again.
+		 */
+		private void removeReplaced(String url) {
+			removeKey(url);
+			removeVariants(url);
+		}
+		
+		private void removeVariants(String url) {
+			removeAllWithPrefix(CacheHelper.getVariantKeyPrefix(url));
+		}
+		
+		@Override
+		protected void prepareDiskEdit(String key, BitmapHolder value, DiskLruCache.Editor editor) {
+			setMetadata(editor, value.validators);
+		}
+		
 		@Override
 	    protected void writeValueToDisk(File file, BitmapHolder holder) throws IOException {
+	    	if(holder.source == null)
+	    	{
+	    		if(holder.bitmap == null)
+	    			throw new IOException("No source bytes to write to " + file);
+	    		writeEncoded(file, holder.bitmap);
+	    		return;
+	    	}
+	    	
 	        BufferedOutputStream ostream = new BufferedOutputStream(new FileOutputStream(file));
 
 	        ostream.write(holder.source);
 
 	        ostream.close();
 	    }
+		
+		/**
+		 * Encodes a bitmap put by {@link #putEncoded} straight into the file.
+		 */
+		private void writeEncoded(File file, Bitmap bitmap) throws IOException {
+			BufferedOutputStream ostream = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				if(!BitmapDecoder.encode(bitmap, ostream))
+					throw new IOException("Could not encode bitmap to " + file);
+			} finally {
+				ostream.close();
+			}
+		}
 
+		/**
+		 * The in-memory cache is bounded by the size of decoded bitmaps, not by their count.
+		 * @deprecated use {@link #setMemoryCacheSize(long)} or {@link #setMemoryCacheFraction(float)}
+		 */
+		@Deprecated
 		public static void setInMemoryCount(int inMemoryCount) {
-			if(FastImageCache.mInMemoryCount != inMemoryCount)
+		}
+
+		/**
+		 * Sets the in-memory budget. Least recently used bitmaps are dropped from memory once
+		 * their total size exceeds it, they are still available from the disk cache.
+		 * @param bytes budget in bytes of decoded bitmap data
+		 */
+		public static synchronized void setMemoryCacheSize(long bytes) {
+			mMemoryCacheSize = bytes;
+			if(_instance != null)
 			{
-				FastImageCache.mInMemoryCount = inMemoryCount;
-				lastHits = new BitmapHolder[mInMemoryCount];
-				lastHitCounter = 0;
+				_instance.setMaxMemorySize(bytes);
 			}
 		}
+
+		/**
+		 * Sets the in-memory budget as a fraction of the max heap size, see {@link #setMemoryCacheSize(long)}.
+		 * @param fractionOfMaxHeap value between 0 and 1, defaults to 1/8
+		 */
+		public static void setMemoryCacheFraction(float fractionOfMaxHeap) {
+			if(fractionOfMaxHeap <= 0 || fractionOfMaxHeap > 1)
+				throw new IllegalArgumentException("fractionOfMaxHeap must be in (0, 1], got " + fractionOfMaxHeap);
+			
+			setMemoryCacheSize(memoryCacheSizeForFraction(fractionOfMaxHeap));
+		}
+
+		/**
+		 * Sets the max size of the pool of bitmaps evicted from memory, which new images are
+		 * decoded into instead of allocating new bitmaps. By default a quarter of the in-memory
+		 * budget, 0 disables pooling.
+		 * @param bytes
+		 */
+		public static synchronized void setBitmapPoolSize(long bytes) {
+			mBitmapPoolSize = bytes;
+			if(_instance != null)
+			{
+				_instance.bitmapPool.setMaxSize(bytes);
+			}
+		}
+		
+		/**
+		 * @return pool of bitmaps to decode into
+		 */
+		public BitmapPool getBitmapPool() {
+			return bitmapPool;
+		}
+		
+		private static long memoryCacheSizeForFraction(float fractionOfMaxHeap) {
+			return (long) (Runtime.getRuntime().maxMemory() * fractionOfMaxHeap);
+		}
 	}
\ No newline at end of file
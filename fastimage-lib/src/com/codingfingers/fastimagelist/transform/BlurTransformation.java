@@ -0,0 +1,112 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.transform;
+
+import com.codingfingers.fastimagelist.bitmap.BitmapDecoder;
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+
+import android.graphics.Bitmap;
+
+/**
+ * Blurs the image with three passes of a box blur, which is close to a gaussian blur and takes
+ * the same time whatever the radius.
+ */
+public class BlurTransformation implements Transformation {
+	
+	private static final int PASSES = 3;
+	
+	private final int radius;
+	private final String key;
+	
+	/**
+	 * @param radius blur radius in pixels of the transformed bitmap
+	 */
+	public BlurTransformation(int radius)
+	{
+		if(radius < 0)
+			throw new IllegalArgumentException("Radius must not be negative, got " + radius);
+		this.radius = radius;
+		this.key = "blur(" + radius + ")";
+	}
+	
+	@Override
+	public String getKey() {
+		return key;
+	}
+	
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		if(radius == 0)
+			return source;
+		
+		int width = source.getWidth();
+		int height = source.getHeight();
+		
+		int[] pixels = new int[width * height];
+		int[] scratch = new int[width * height];
+		source.getPixels(pixels, 0, width, 0, 0, width, height);
+		
+		for(int pass = 0; pass < PASSES; pass++)
+		{
+			// rows into scratch transposed, then its rows (the columns) back
+			blurRows(pixels, scratch, width, height, radius);
+			blurRows(scratch, pixels, height, width, radius);
+		}
+		
+		Bitmap target = BitmapDecoder.obtainBitmap(width, height, pool);
+		target.setPixels(pixels, 0, width, 0, 0, width, height);
+		target.setHasAlpha(source.hasAlpha());
+		return target;
+	}
+	
+	/**
+	 * Blurs each row with a sliding window, clamping at the edges, and writes it transposed.
+	 */
+	private static void blurRows(int[] in, int[] out, int width, int height, int radius)
+	{
+		int window = radius * 2 + 1;
+		for(int y = 0; y < height; y++)
+		{
+			int row = y * width;
+			int a = 0, r = 0, g = 0, b = 0;
+			for(int i = -radius; i <= radius; i++)
+			{
+				int pixel = in[row + clamp(i, width)];
+				a += pixel >>> 24;
+				r += (pixel >> 16) & 0xff;
+				g += (pixel >> 8) & 0xff;
+				b += pixel & 0xff;
+			}
+			
+			for(int x = 0; x < width; x++)
+			{
+				out[x * height + y] = ((a / window) << 24) | ((r / window) << 16) | ((g / window) << 8) | (b / window);
+				
+				int added = in[row + clamp(x + radius + 1, width)];
+				int removed = in[row + clamp(x - radius, width)];
+				a += (added >>> 24) - (removed >>> 24);
+				r += ((added >> 16) & 0xff) - ((removed >> 16) & 0xff);
+				g += ((added >> 8) & 0xff) - ((removed >> 8) & 0xff);
+				b += (added & 0xff) - (removed & 0xff);
+			}
+		}
+	}
+	
+	private static int clamp(int i, int size)
+	{
+		return i < 0 ? 0 : (i >= size ? size - 1 : i);
+	}
+}
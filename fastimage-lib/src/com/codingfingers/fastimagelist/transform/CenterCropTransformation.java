@@ -0,0 +1,79 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.transform;
+
+import com.codingfingers.fastimagelist.bitmap.BitmapDecoder;
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Scales the image to fill the given size, keeping its aspect ratio, and crops what sticks out
+ * evenly on both sides.
+ */
+public class CenterCropTransformation implements Transformation {
+	
+	private final int width;
+	private final int height;
+	private final String key;
+	
+	public CenterCropTransformation(int width, int height)
+	{
+		if(width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Size must be positive, got " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.key = "centerCrop(" + width + "x" + height + ")";
+	}
+	
+	@Override
+	public String getKey() {
+		return key;
+	}
+	
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		int sourceWidth = source.getWidth();
+		int sourceHeight = source.getHeight();
+		
+		if(sourceWidth == width && sourceHeight == height)
+			return source;
+		
+		// the part of the source with the target aspect ratio
+		Rect crop;
+		if((long) sourceWidth * height > (long) width * sourceHeight)
+		{
+			int cropWidth = (int) ((long) width * sourceHeight / height);
+			int left = (sourceWidth - cropWidth) / 2;
+			crop = new Rect(left, 0, left + cropWidth, sourceHeight);
+		}
+		else
+		{
+			int cropHeight = (int) ((long) height * sourceWidth / width);
+			int top = (sourceHeight - cropHeight) / 2;
+			crop = new Rect(0, top, sourceWidth, top + cropHeight);
+		}
+		
+		Bitmap target = BitmapDecoder.obtainBitmap(width, height, pool);
+		Canvas canvas = new Canvas(target);
+		canvas.drawBitmap(source, crop, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+		target.setHasAlpha(source.hasAlpha());
+		return target;
+	}
+}
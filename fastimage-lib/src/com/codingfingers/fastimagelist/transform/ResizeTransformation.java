@@ -0,0 +1,60 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.transform;
+
+import com.codingfingers.fastimagelist.bitmap.BitmapDecoder;
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+
+import android.graphics.Bitmap;
+
+/**
+ * Scales the image to fit in the given size, keeping its aspect ratio.
+ */
+public class ResizeTransformation implements Transformation {
+	
+	private final int maxWidth;
+	private final int maxHeight;
+	private final String key;
+	
+	public ResizeTransformation(int maxWidth, int maxHeight)
+	{
+		if(maxWidth <= 0 || maxHeight <= 0)
+			throw new IllegalArgumentException("Size must be positive, got " + maxWidth + "x" + maxHeight);
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.key = "resize(" + maxWidth + "x" + maxHeight + ")";
+	}
+	
+	@Override
+	public String getKey() {
+		return key;
+	}
+	
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		int width = source.getWidth();
+		int height = source.getHeight();
+		
+		float factor = Math.min((float) maxWidth / width, (float) maxHeight / height);
+		int targetWidth = Math.max(1, Math.round(width * factor));
+		int targetHeight = Math.max(1, Math.round(height * factor));
+		
+		if(targetWidth == width && targetHeight == height)
+			return source;
+		
+		return BitmapDecoder.scale(source, targetWidth, targetHeight, pool);
+	}
+}
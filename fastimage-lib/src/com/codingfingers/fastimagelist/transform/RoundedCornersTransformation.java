@@ -0,0 +1,71 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.transform;
+
+import com.codingfingers.fastimagelist.bitmap.BitmapDecoder;
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Rounds the corners of the image, making them transparent.
+ */
+public class RoundedCornersTransformation implements Transformation {
+	
+	private final int radius;
+	private final String key;
+	
+	/**
+	 * @param radius corner radius in pixels of the transformed bitmap
+	 */
+	public RoundedCornersTransformation(int radius)
+	{
+		if(radius < 0)
+			throw new IllegalArgumentException("Radius must not be negative, got " + radius);
+		this.radius = radius;
+		this.key = "roundedCorners(" + radius + ")";
+	}
+	
+	@Override
+	public String getKey() {
+		return key;
+	}
+	
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		if(radius == 0)
+			return source;
+		
+		int width = source.getWidth();
+		int height = source.getHeight();
+		
+		Bitmap target = BitmapDecoder.obtainBitmap(width, height, pool);
+		
+		Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+		
+		Canvas canvas = new Canvas(target);
+		canvas.drawRoundRect(new RectF(0, 0, width, height), radius, radius, paint);
+		// the corners are transparent even if the source is opaque
+		target.setHasAlpha(true);
+		return target;
+	}
+}
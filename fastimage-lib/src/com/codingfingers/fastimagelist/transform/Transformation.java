@@ -0,0 +1,43 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.transform;
+
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+
+import android.graphics.Bitmap;
+
+/**
+ * Transforms a decoded image, e.g. crops it or rounds its corners. Transformations run on the
+ * decode pool, their results are cached in memory and on disk under the key of the transformation,
+ * see {@link com.codingfingers.fastimagelist.cache.FastImageCache#getBitmap(String, int, int, Transformation)}.
+ * Implementations must be thread safe, and must not modify the source bitmap, as it is cached too.
+ */
+public interface Transformation {
+	
+	/**
+	 * @return key identifying this transformation and its parameters, stable across app runs as
+	 * it names files of the disk cache; two transformations with the same key must give the same result.
+	 * Called on every lookup, so better built once than on each call.
+	 */
+	String getKey();
+	
+	/**
+	 * @param source bitmap to transform, must not be modified
+	 * @param pool pool to take the result bitmap from, see {@link BitmapPool#get(int, int, Bitmap.Config)}
+	 * @return a new bitmap, or the source itself if there is nothing to do
+	 */
+	Bitmap transform(Bitmap source, BitmapPool pool);
+}
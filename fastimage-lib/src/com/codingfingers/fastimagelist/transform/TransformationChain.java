@@ -0,0 +1,66 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.transform;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.codingfingers.fastimagelist.bitmap.BitmapPool;
+
+import android.graphics.Bitmap;
+
+/**
+ * Runs transformations one after another, e.g. a center crop and then rounded corners.
+ * Intermediate bitmaps go back to the pool.
+ */
+public class TransformationChain implements Transformation {
+	
+	private final List<Transformation> transformations;
+	private final String key;
+	
+	public TransformationChain(Transformation... transformations)
+	{
+		this.transformations = Arrays.asList(transformations.clone());
+		
+		StringBuilder sb = new StringBuilder();
+		for(Transformation transformation : this.transformations)
+		{
+			if(sb.length() > 0)
+				sb.append(',');
+			sb.append(transformation.getKey());
+		}
+		this.key = sb.toString();
+	}
+	
+	@Override
+	public String getKey() {
+		return key;
+	}
+	
+	@Override
+	public Bitmap transform(Bitmap source, BitmapPool pool) {
+		Bitmap result = source;
+		for(Transformation transformation : transformations)
+		{
+			Bitmap next = transformation.transform(result, pool);
+			if(next != result && result != source && pool != null)
+				// nobody else has seen it
+				pool.put(result);
+			result = next;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,47 @@
+/* Copyright (c) 2012 Coding Fingers S. C. Marcin �picki i Daniel Dudek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.codingfingers.fastimagelist.util;
+
+import android.util.Log;
+
+/**
+ * Logs to logcat, from a minimum level on, e.g. <code>new AndroidLogger(ImageLogger.DEBUG)</code>
+ * in debug builds.
+ */
+public class AndroidLogger implements ImageLogger {
+	
+	private final int minLevel;
+	
+	/**
+	 * @param minLevel lowest level logged, one of the {@link ImageLogger} levels
+	 */
+	public AndroidLogger(int minLevel)
+	{
+		this.minLevel = minLevel;
+	}
+	
+	@Override
+	public boolean isLoggable(int level) {
+		return level >= minLevel;
+	}
+	
+	@Override
+	public void log(int level, String tag, String message, Throwable error) {
+		if(error != null)
+			message = message + '\n' + Log.getStackTraceString(error);
+		Log.println(level, tag, message);
+	}
+}
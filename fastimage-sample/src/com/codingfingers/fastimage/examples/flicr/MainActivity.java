@@ -18,7 +18,11 @@ import com.codingfingers.fastimage.examples.flicr.R;
 import com.codingfingers.fastimage.examples.flicr.remote.EntryListReader;
 import com.codingfingers.fastimage.examples.flicr.remote.EntryVO;
 import com.codingfingers.fastimage.examples.flicr.utils.IOUtils;
+import com.codingfingers.fastimagelist.PrefetchScrollListener;
 import com.codingfingers.fastimagelist.cache.FastImageCache;
+import com.codingfingers.fastimagelist.util.AndroidLogger;
+import com.codingfingers.fastimagelist.util.FastImageLog;
+import com.codingfingers.fastimagelist.util.ImageLogger;
 
 import android.app.Activity;
 import android.os.AsyncTask;
@@ -44,6 +48,11 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
         
+        // the library logs nothing unless given a logger; keep release builds quiet
+        if (BuildConfig.DEBUG) {
+            FastImageLog.setLogger(new AndroidLogger(ImageLogger.DEBUG));
+        }
+        
         // you can find most of thumnails handling code in PhotosAdapter class
         
         // widgets
@@ -133,6 +142,9 @@ public class MainActivity extends Activity {
 				
 				PhotosAdapter photosAdapter = new PhotosAdapter(MainActivity.this, result);
 				mGVGridView.setAdapter(photosAdapter);
+				
+				// warm the cache with thumbnails we are scrolling towards
+				mGVGridView.setOnScrollListener(new PrefetchScrollListener(photosAdapter.getImageDownloader(), photosAdapter));
 			}
 			
 			// failure
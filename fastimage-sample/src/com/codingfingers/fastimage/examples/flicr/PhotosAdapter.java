@@ -4,11 +4,12 @@ import java.util.List;
 
 import com.codingfingers.fastimage.examples.flicr.R;
 import com.codingfingers.fastimage.examples.flicr.remote.EntryVO;
-import com.codingfingers.fastimage.examples.flicr.utils.BitmapUtils;
 import com.codingfingers.fastimagelist.FastImageDownloader;
 import com.codingfingers.fastimagelist.FastImageDownloader.IDownloadImageListener;
 import com.codingfingers.fastimagelist.FastImageDownloader.IImageAvailableListener;
 import com.codingfingers.fastimagelist.FastImageDownloader.IStatusUpdateListener;
+import com.codingfingers.fastimagelist.PrefetchScrollListener.UrlProvider;
+import com.codingfingers.fastimagelist.transform.ResizeTransformation;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -23,7 +24,7 @@ import android.view.animation.AnimationUtils;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
-public class PhotosAdapter extends ArrayAdapter<EntryVO> {
+public class PhotosAdapter extends ArrayAdapter<EntryVO> implements UrlProvider {
 
 	
 	// feed with thumbnails from flicr
@@ -51,6 +52,11 @@ public class PhotosAdapter extends ArrayAdapter<EntryVO> {
 		// if image is available in disk cache, try to load it immediately, instead of running new thread
 		mImageDownloader.setRunLoadingImageFromDiskCacheAsync(false);
 		
+		// thumbnails are decoded downsampled, and then scaled to fit exactly. This is done in
+		// background, and the result is cached
+		int thumbnailSize = Math.round(mThumbnailWidthInPx);
+		mImageDownloader.setTransformation(new ResizeTransformation(thumbnailSize, thumbnailSize));
+		
 		// image available handler, here you should apply your image to the target. 
 		mImageDownloader.setImageAvailableListener(new IImageAvailableListener<ImageView>() {
 
@@ -75,13 +81,6 @@ public class PhotosAdapter extends ArrayAdapter<EntryVO> {
 		// to handle the download process
 		mImageDownloader.setDownloadListener(new IDownloadImageListener<ImageView>() {
 			
-			// after download complete and just before the image is stored in disk cache
-			// you can process bytes, resize for example. This is done in async thread
-			@Override
-			public byte[] processBytesAfterDownload(byte[] source) {
-				return BitmapUtils.resizeImageAfterDownload(source, mThumbnailWidthInPx);
-			}
-
 			// update progress information
 			@Override
 			public void processViewOnProgress(ImageView view,
@@ -164,6 +163,15 @@ public class PhotosAdapter extends ArrayAdapter<EntryVO> {
 		mPhotos.clear();
 	}
 	
+	@Override
+	public String getImageUrl(int position) {
+		return mPhotos.get(position).getThumb();
+	}
+	
+	public FastImageDownloader<ImageView> getImageDownloader() {
+		return mImageDownloader;
+	}
+	
 	
 	@Override
 	public View getView(int position, View row, ViewGroup parent) {		
@@ -197,7 +205,8 @@ public class PhotosAdapter extends ArrayAdapter<EntryVO> {
 		holder.thumbnail1.setImageBitmap(null);
 		holder.textInfo1.setText("");
 		
-		boolean wasInCache = mImageDownloader.downloadImage(holder.thumbnail1, photo.getThumb(), position);
+		int thumbnailSize = Math.round(mThumbnailWidthInPx);
+		boolean wasInCache = mImageDownloader.downloadImage(holder.thumbnail1, photo.getThumb(), position, thumbnailSize, thumbnailSize);
 		
 		// fade in support, you can omit this
 		Animation fadeIn = (Animation)holder.thumbnail1.getTag(R.id.animation_tag_id);